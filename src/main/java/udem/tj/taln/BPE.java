@@ -1,6 +1,12 @@
 package udem.tj.taln;
 
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -12,17 +18,21 @@ public class BPE {
 
     private static final int MAX_MERGES_CAP = 50_000;  // hard cap
     private static final int MIN_PAIR_FREQ = 2;        // stop if best pair < 2
+    private static final int CHECKPOINT_EVERY = 500;   // merges between two training checkpoints
+    private static final int BATCH_GRAIN = 64;         // sentences tokenized by a batch task without splitting
 
     // utilitaires pour la tokenization
     private static final Map<List<String>, HashMap<String, Integer>> TOP_CACHE = Collections.synchronizedMap(new WeakHashMap<>());
-    private static final int WORD_CACHE_CAP = 100000;
-    private static final Map<String, List<String>> WORD_CACHE =
-            Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
-                @Override
-                protected boolean removeEldestEntry(Map.Entry<String, List<String>> e) {
-                    return size() > WORD_CACHE_CAP;
-                }
-            });
+
+    /**
+     * The model compiled by {@link #tokenizeWordFast} for a merge list and a charset (compared by identity).
+     */
+    private record CompiledModel(List<String> merges, HashSet<String> charset, boolean boundary, BpeModel model) {
+    }
+
+    private static final int COMPILED_MODELS = 4; // merge lists kept compiled by tokenizeWordFast
+
+    private volatile List<CompiledModel> compiledModels = List.of(); // most recently compiled first
 
     /**
      * The Encoding record represents a structure used for byte pair encoding (BPE) techniques.
@@ -70,6 +80,10 @@ public class BPE {
     private record PairCount(String pair, int count) {
     }
 
+    // best count first, ties broken on the pair string so that the merge order is deterministic
+    private static final Comparator<PairCount> PAIR_ORDER =
+            (a, b) -> a.count != b.count ? Integer.compare(b.count, a.count) : a.pair.compareTo(b.pair);
+
     /**
      * Splits a given string into a list of individual character tokens.
      *
@@ -113,16 +127,23 @@ public class BPE {
      * @return the number of substitutions made where the pair of tokens was merged
      */
     private static int mergeInWord(List<String> toks, String left, String right) {
-        int i = 0, replaced = 0;
-        while (i < toks.size() - 1) {
-            if (toks.get(i).equals(left) && toks.get(i + 1).equals(right)) {
-                toks.set(i, left + right);
-                toks.remove(i + 1);
+        // single compaction pass (read index i, write index w) instead of remove() per hit
+        int n = toks.size(), w = 0, replaced = 0;
+        String merged = null;
+        for (int i = 0; i < n; ) {
+            String t = toks.get(i);
+            if (i < n - 1 && t.equals(left) && toks.get(i + 1).equals(right)) {
+                if (merged == null) merged = left + right;
+                toks.set(w++, merged);
+                i += 2;
                 replaced++;
             } else {
+                if (w != i) toks.set(w, t);
+                w++;
                 i++;
             }
         }
+        if (replaced > 0) toks.subList(w, n).clear();
         return replaced;
     }
 
@@ -169,9 +190,7 @@ public class BPE {
             }
         }
 
-        PriorityQueue<PairCount> pq = new PriorityQueue<>(
-                (a, b) -> Integer.compare(b.count, a.count)
-        );
+        PriorityQueue<PairCount> pq = new PriorityQueue<>(PAIR_ORDER);
         for (var e : pairCounts.entrySet()) {
             if (e.getValue() > 0) pq.offer(new PairCount(e.getKey(), e.getValue()));
         }
@@ -320,8 +339,10 @@ public class BPE {
     /**
      * Tokenizes a given word into a list of subword tokens using a fast byte pair encoding (BPE) algorithm.
      * <p>
-     * The method tokenizes the word by segmenting it into known characters and performing merges
-     * according to the provided merge list and character set.
+     * The merge list and the charset are compiled into a {@link BpeModel}, kept for the next calls with the same
+     * (identical) list and charset; its segmentation cache is scoped to that model. The models of the last four merge
+     * lists are kept, so callers alternating between a few lists do not recompile them; callers using more lists
+     * should compile their models once and use {@link BpeModel#tokenize(String)} directly.
      *
      * @param word     the input word to tokenize
      * @param merges   the predefined list of merge operations sorted by rank
@@ -331,53 +352,94 @@ public class BPE {
      */
     public List<String> tokenizeWordFast(String word, List<String> merges,
                                          HashSet<String> charset, boolean boundary) {
-        final String unkToken = "<UNK>";
-        final String lower = word.toLowerCase();
-        final String surface = boundary ? ("_" + lower) : lower;
-
-        // cache
-        final String cacheKey = (boundary ? "1" : "0") + "|" + System.identityHashCode(merges) + "|" + lower;
-        List<String> cached = WORD_CACHE.get(cacheKey);
-        if (cached != null) return cached;
+        return modelFor(merges, charset, boundary).tokenize(word);
+    }
 
-        // segmentation into known chars
-        ArrayList<String> toks = new ArrayList<>(surface.length());
-        for (int i = 0; i < surface.length(); i++) {
-            String c = String.valueOf(surface.charAt(i));
-            toks.add(charset.contains(c) ? c : unkToken);
-        }
-        if (toks.size() < 2) {
-            List<String> out = List.copyOf(toks);
-            WORD_CACHE.put(cacheKey, out);
-            return out;
+    /**
+     * Returns the model of a merge list, charset and boundary setting among the last {@link #COMPILED_MODELS}
+     * compiled, compiling a new one (and dropping the oldest) when there is none.
+     */
+    private BpeModel modelFor(List<String> merges, HashSet<String> charset, boolean boundary) {
+        List<CompiledModel> models = compiledModels;
+        for (CompiledModel m : models) {
+            if (m.merges == merges && m.charset == charset && m.boundary == boundary) return m.model;
         }
+        CompiledModel m = new CompiledModel(merges, charset, boundary, new BpeModel(merges, charset, boundary));
+        List<CompiledModel> next = new ArrayList<>(COMPILED_MODELS);
+        next.add(m);
+        for (int i = 0; i < models.size() && next.size() < COMPILED_MODELS; i++) next.add(models.get(i));
+        compiledModels = List.copyOf(next);
+        return m.model;
+    }
 
-        // rank for merges
-        HashMap<String, Integer> ranks = ranksFor(merges);
+    /**
+     * Tokenizes a collection of pre-split sentences in parallel with a compiled model.
+     * The sentences are split in ranges on a fork/join pool (work stealing balances the uneven sentence lengths),
+     * and the tokens of each sentence are written at its index, so the output keeps the input order.
+     *
+     * @param sentences the sentences, each a list of words
+     * @param model     the compiled model
+     * @return for each sentence, the concatenated subword tokens of its words
+     */
+    public List<List<String>> tokenizeBatch(List<List<String>> sentences, BpeModel model) {
+        return tokenizeBatch(sentences, model, Runtime.getRuntime().availableProcessors());
+    }
 
-        // always take the best ranked pair
-        while (true) {
-            int bestRank = Integer.MAX_VALUE;
-            int bestI = -1;
+    /**
+     * Same as {@link #tokenizeBatch(List, BpeModel)} with an explicit number of worker threads.
+     *
+     * @param parallelism the number of threads (1 tokenizes in the calling thread)
+     */
+    public List<List<String>> tokenizeBatch(List<List<String>> sentences, BpeModel model, int parallelism) {
+        List<List<String>> out = new ArrayList<>(Collections.nCopies(sentences.size(), null));
+        List<List<String>> input = sentences instanceof RandomAccess ? sentences : new ArrayList<>(sentences);
+        BatchTask task = new BatchTask(input, model, out, 0, out.size());
+        if (parallelism <= 1 || out.size() <= BATCH_GRAIN) task.compute();
+        else if (parallelism == ForkJoinPool.getCommonPoolParallelism()) ForkJoinPool.commonPool().invoke(task);
+        else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return out;
+    }
 
-            // searches for the best ranked pair in the current segment
-            for (int i = 0; i < toks.size() - 1; i++) {
-                String key = toks.get(i) + " " + toks.get(i + 1);
-                Integer r = ranks.get(key);
-                if (r != null && r < bestRank) {
-                    bestRank = r;
-                    bestI = i;
-                    if (bestRank == 0) break;
+    /**
+     * Fork/join task tokenizing a range of sentences, halved until it is below {@link #BATCH_GRAIN}.
+     */
+    private static final class BatchTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<List<String>> sentences;
+        private final transient BpeModel model;
+        private final transient List<List<String>> out;
+        private final int lo, hi;
+
+        BatchTask(List<List<String>> sentences, BpeModel model, List<List<String>> out, int lo, int hi) {
+            this.sentences = sentences;
+            this.model = model;
+            this.out = out;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= BATCH_GRAIN) {
+                for (int i = lo; i < hi; i++) {
+                    List<String> toks = new ArrayList<>();
+                    for (String w : sentences.get(i)) toks.addAll(model.tokenize(w));
+                    out.set(i, toks);
                 }
+                return;
             }
-            if (bestI == -1) break; // no pair found -> done
-
-            toks.set(bestI, toks.get(bestI) + toks.get(bestI + 1));
-            toks.remove(bestI + 1);
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new BatchTask(sentences, model, out, lo, mid), new BatchTask(sentences, model, out, mid, hi));
         }
-        List<String> out = List.copyOf(toks);
-        WORD_CACHE.put(cacheKey, out);
-        return out;
     }
 
     /**
@@ -462,9 +524,7 @@ public class BPE {
             }
         }
 
-        PriorityQueue<PairCount> pq = new PriorityQueue<>(
-                (a, b) -> Integer.compare(b.count, a.count)
-        );
+        PriorityQueue<PairCount> pq = new PriorityQueue<>(PAIR_ORDER);
         for (var e : pairCounts.entrySet()) if (e.getValue() > 0) pq.offer(new PairCount(e.getKey(), e.getValue()));
 
         HashSet<String> tokens = new HashSet<>(charset);
@@ -547,6 +607,142 @@ public class BPE {
 //        return null;
     }
 
+    /**
+     * Same contract as {@link #encodeParam(HashMap, int, int, int, boolean)}, but trains on interned symbol ids
+     * with packed {@code long} pair keys and primitive pair statistics, on all available cores (see {@link BpeTrainer}).
+     * The returned {@link Encoding} is identical to the one of {@code encodeParam}.
+     *
+     * @param counts       A map where the key is the word and the value is its frequency.
+     *                     Must not be null or empty.
+     * @param vocabSize    The desired vocabulary size after encoding.
+     * @param minPairFreq  The minimum frequency of a pair of tokens required for it to be considered for merging.
+     * @param maxMergesCap The maximum number of merges allowed in the encoding process.
+     * @param boundary     A flag indicating whether to prepend the boundary marker ('_') to every word.
+     * @return An {@link Encoding} object containing the vocabulary mapping, merges list, character set, and final token set.
+     * @throws IllegalArgumentException If the `counts` parameter is null or empty.
+     */
+    public Encoding encodeParamFast(HashMap<String, AtomicInteger> counts,
+                                    int vocabSize,
+                                    int minPairFreq,
+                                    int maxMergesCap,
+                                    boolean boundary) {
+        return encodeParamFast(counts, vocabSize, minPairFreq, maxMergesCap, boundary,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Same as {@link #encodeParamFast(HashMap, int, int, int, boolean)} with an explicit number of worker threads.
+     * The merges do not depend on the parallelism.
+     *
+     * @param parallelism the number of threads used to count pairs and apply merges (1 for sequential training)
+     */
+    public Encoding encodeParamFast(HashMap<String, AtomicInteger> counts,
+                                    int vocabSize,
+                                    int minPairFreq,
+                                    int maxMergesCap,
+                                    boolean boundary,
+                                    int parallelism) {
+        long first = System.nanoTime();
+        BpeTrainer trainer = new BpeTrainer(counts, boundary, parallelism);
+        trainer.train(vocabSize, minPairFreq, maxMergesCap);
+        Encoding enc = trainer.toEncoding();
+        long second = System.nanoTime();
+        System.out.println("Encoding(fast) took " + ((second - first) / 1_000_000) + " ms " +
+                " (merges=" + enc.merges().size() + ", symbols=" + enc.tokens().size() + ", boundary=" + boundary +
+                ", minPair=" + minPairFreq + ", threads=" + parallelism + ", queue: " + trainer.queueStats() + ")");
+        return enc;
+    }
+
+    /**
+     * Trains once for a whole sweep of (vocabSize, minPairFreq) configurations sharing the same boundary setting.
+     * <p>
+     * The merges of a smaller vocabulary or of a higher minimum pair frequency are a prefix of the merges of the
+     * largest, loosest run, so the trainer is run once up to {@code maxVocabSize} with {@code minPairFreq}, recording
+     * the best-pair count of every merge. Every configuration of the sweep is then derived from the returned trainer
+     * with {@link BpeTrainer#mergesFor(int, int, int)} or {@link BpeTrainer#encodingFor(int, int, int)}.
+     *
+     * @param counts       A map where the key is the word and the value is its frequency.
+     * @param maxVocabSize The largest vocabulary size of the sweep.
+     * @param minPairFreq  The smallest minimum pair frequency of the sweep.
+     * @param maxMergesCap The maximum number of merges allowed in the encoding process.
+     * @param boundary     A flag indicating whether to prepend the boundary marker ('_') to every word.
+     * @return the trained {@link BpeTrainer}
+     * @throws IllegalArgumentException If the `counts` parameter is null or empty.
+     */
+    public BpeTrainer encodeSweep(HashMap<String, AtomicInteger> counts,
+                                  int maxVocabSize,
+                                  int minPairFreq,
+                                  int maxMergesCap,
+                                  boolean boundary) {
+        return encodeSweep(counts, maxVocabSize, minPairFreq, maxMergesCap, boundary, null);
+    }
+
+    /**
+     * Same as {@link #encodeSweep(HashMap, int, int, int, boolean)}, checkpointing the merges to a file during
+     * training. If the checkpoint exists (killed run), its merges are replayed first and training goes on from there.
+     * The checkpoint is deleted once training completes.
+     *
+     * @param checkpoint the checkpoint file, or null for no checkpoint
+     */
+    public BpeTrainer encodeSweep(HashMap<String, AtomicInteger> counts,
+                                  int maxVocabSize,
+                                  int minPairFreq,
+                                  int maxMergesCap,
+                                  boolean boundary,
+                                  Path checkpoint) {
+        long first = System.nanoTime();
+        BpeTrainer trainer = new BpeTrainer(counts, boundary, Runtime.getRuntime().availableProcessors());
+        int replayed = 0;
+        if (checkpoint != null) {
+            if (Files.exists(checkpoint)) replayed = trainer.replay(BpeTrainer.readMerges(checkpoint));
+            trainer.checkpointTo(checkpoint, CHECKPOINT_EVERY);
+        }
+        trainer.train(maxVocabSize, minPairFreq, maxMergesCap);
+        if (checkpoint != null) {
+            try {
+                Files.deleteIfExists(checkpoint);
+            } catch (IOException e) {
+                System.err.println("Cannot delete checkpoint " + checkpoint + ": " + e.getMessage());
+            }
+        }
+        long second = System.nanoTime();
+        System.out.println("Encoding(sweep) took " + ((second - first) / 1_000_000) + " ms " +
+                " (merges=" + trainer.merges().size() + ", replayed=" + replayed + ", boundary=" + boundary +
+                ", minPair=" + minPairFreq + ")");
+        return trainer;
+    }
+
+    /**
+     * Resumes a training run from a learned merge list (a merges file or a checkpoint) instead of starting over:
+     * the merges are replayed on the vocabulary, then training continues up to the new targets.
+     * With the same vocabulary, the result is the one of {@link #encodeParamFast} with the new targets.
+     *
+     * @param counts       A map where the key is the word and the value is its frequency.
+     * @param learned      The merges to start from, in order.
+     * @param vocabSize    The desired vocabulary size.
+     * @param minPairFreq  The minimum frequency for a pair to be merged.
+     * @param maxMergesCap The maximum number of merges allowed in the encoding process.
+     * @param boundary     A flag indicating whether to prepend the boundary marker ('_') to every word.
+     * @return An {@code Encoding} with the replayed and the new merges.
+     * @throws IllegalArgumentException If the `counts` parameter is null or empty, or a merge is malformed.
+     */
+    public Encoding encodeResume(HashMap<String, AtomicInteger> counts,
+                                 List<String> learned,
+                                 int vocabSize,
+                                 int minPairFreq,
+                                 int maxMergesCap,
+                                 boolean boundary) {
+        long first = System.nanoTime();
+        BpeTrainer trainer = new BpeTrainer(counts, boundary, Runtime.getRuntime().availableProcessors());
+        int replayed = trainer.replay(learned);
+        int trained = trainer.train(vocabSize, minPairFreq, maxMergesCap);
+        Encoding enc = trainer.toEncoding();
+        long second = System.nanoTime();
+        System.out.println("Encoding(resume) took " + ((second - first) / 1_000_000) + " ms " +
+                " (replayed=" + replayed + ", trained=" + trained + ", boundary=" + boundary + ", minPair=" + minPairFreq + ")");
+        return enc;
+    }
+
     /**
      * Updates the frequency count of a token pair and manages its presence in the priority queue.
      * If the resulting frequency of the pair becomes zero or less, it is removed from the map
@@ -0,0 +1,188 @@
+package udem.tj.taln;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BPE tokenizer segmenting a word in a single left-to-right pass, compiled from a {@link BpeModel}.
+ * <p>
+ * The tokens of the model are stored reversed in a trie over character ids. For every end position {@code i} of the
+ * word, the automaton keeps the last token of the BPE segmentation of the prefix ending at {@code i}: it is the
+ * (longest) token ending at {@code i} whose start {@code j} is the start of the word, or whose pair with the last
+ * token at {@code j} is compatible, i.e. the BPE of the two tokens concatenated is the two tokens themselves.
+ * The segmentation of the word is then read backwards from the last tokens. Only tokens that BPE outputs whole
+ * (the BPE of their characters is themselves) are in the trie, and the compatibility of a pair is computed once per
+ * thread with the ranked merges of the model, then memoized.
+ * <p>
+ * Characters outside the charset never merge, so they split the word into segments tokenized separately. If a merge
+ * takes the unknown token as operand, the automaton falls back to the ranked merges of the model.
+ * {@link #verify(Iterable)} checks the equivalence with {@link BpeModel#tokenize(String)} on a set of words.
+ */
+public class BpeAutomaton {
+
+    private static final int MEMO_CAP = 1 << 20; // memoized pairs per thread before the memo is reset
+
+    private final BpeModel model;
+    private final int[][] tokenChars;  // token id -> its character ids, null for a token BPE never outputs whole
+    private final LongIntMap children = new LongIntMap(); // pair key (node, char id) -> child in the reversed trie
+    private int[] nodeTokens = new int[64];                // node -> token spelled backwards by its path, -1 if none
+    private int nodeCount = 1;
+    private final int maxTokenLength;
+    private final ThreadLocal<LongIntMap> compatible = ThreadLocal.withInitial(LongIntMap::new);
+
+    /**
+     * Compiles the automaton of a model.
+     *
+     * @param model the model whose merges and charset define the tokens
+     */
+    public BpeAutomaton(BpeModel model) {
+        this.model = model;
+        Arrays.fill(nodeTokens, -1);
+        tokenChars = new int[model.size()][];
+        int maxLength = 1;
+        for (int id = 0; id < model.size(); id++) {
+            if (id == BpeModel.UNK_ID) continue;
+            String s = model.symbol(id);
+            int[] chars = new int[s.length()];
+            boolean known = true;
+            for (int k = 0; k < s.length(); k++) {
+                chars[k] = model.charId(s.charAt(k));
+                if (chars[k] == BpeModel.UNK_ID) known = false;
+            }
+            if (!known || chars.length == 0) continue;
+            int[] whole = chars.clone();
+            if (model.applyMerges(whole) != 1 || whole[0] != id) continue;
+
+            tokenChars[id] = chars;
+            maxLength = Math.max(maxLength, chars.length);
+            int node = 0;
+            for (int k = chars.length - 1; k >= 0; k--) node = child(node, chars[k]);
+            nodeTokens[node] = id;
+        }
+        maxTokenLength = maxLength;
+    }
+
+    private int child(int node, int charId) {
+        long key = SymbolTable.pairKey(node, charId);
+        int c = children.get(key, -1);
+        if (c >= 0) return c;
+        if (nodeCount == nodeTokens.length) {
+            nodeTokens = Arrays.copyOf(nodeTokens, nodeCount * 2);
+            Arrays.fill(nodeTokens, nodeCount, nodeTokens.length, -1);
+        }
+        children.put(key, nodeCount);
+        return nodeCount++;
+    }
+
+    /**
+     * Tokenizes a word; the output is the one of {@link BpeModel#tokenize(String)}.
+     *
+     * @param word the word to tokenize
+     * @return the subword tokens, unmodifiable
+     */
+    public List<String> tokenize(String word) {
+        int[] chars = model.charIds(word);
+        int[] out = new int[chars.length];
+        int n = segment(chars, out);
+        List<String> toks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) toks.add(model.symbol(out[i]));
+        return List.copyOf(toks);
+    }
+
+    /**
+     * Segments the character ids of a word into token ids.
+     *
+     * @param chars the character ids (see {@link BpeModel#charIds(String)})
+     * @param out   receives the token ids, at least {@code chars.length} long
+     * @return the number of tokens
+     */
+    int segment(int[] chars, int[] out) {
+        int n = chars.length;
+        if (model.unknownMerges()) {
+            int[] merged = chars.clone();
+            int m = model.applyMerges(merged);
+            System.arraycopy(merged, 0, out, 0, m);
+            return m;
+        }
+        LongIntMap memo = compatible.get();
+        int[] last = new int[n + 1];
+        int[] candidates = new int[maxTokenLength];
+        int count = 0, start = 0;
+        for (int i = 0; i <= n; i++) {
+            if (i < n && chars[i] != BpeModel.UNK_ID) continue;
+            for (int end = start + 1; end <= i; end++) last[end] = lastToken(chars, start, end, last, candidates, memo);
+            // read the segment backwards, then put it in order
+            int from = count;
+            for (int end = i; end > start; end -= tokenChars[last[end]].length) out[count++] = last[end];
+            for (int a = from, b = count - 1; a < b; a++, b--) {
+                int t = out[a];
+                out[a] = out[b];
+                out[b] = t;
+            }
+            if (i < n) out[count++] = BpeModel.UNK_ID;
+            start = i + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Finds the last token of the BPE segmentation of {@code chars[start..end)}, given the last tokens of the shorter
+     * prefixes of the segment.
+     */
+    private int lastToken(int[] chars, int start, int end, int[] last, int[] candidates, LongIntMap memo) {
+        // tokens ending at end, shortest first
+        int found = 0;
+        int node = 0;
+        for (int k = end - 1; k >= start; k--) {
+            node = children.get(SymbolTable.pairKey(node, chars[k]), -1);
+            if (node < 0) break;
+            if (nodeTokens[node] >= 0) candidates[found++] = nodeTokens[node];
+        }
+        for (int c = found - 1; c >= 0; c--) {
+            int token = candidates[c];
+            int j = end - tokenChars[token].length;
+            if (j == start || compatible(last[j], token, memo)) return token;
+        }
+        throw new IllegalStateException("No compatible token at " + end);
+    }
+
+    /**
+     * @return true if the BPE of the characters of {@code left} followed by those of {@code right} is the two tokens
+     */
+    private boolean compatible(int left, int right, LongIntMap memo) {
+        long key = SymbolTable.pairKey(left, right);
+        int known = memo.get(key, -1);
+        if (known >= 0) return known == 1;
+
+        int[] a = tokenChars[left], b = tokenChars[right];
+        int[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        int n = model.applyMerges(both);
+        boolean ok = n == 2 && both[0] == left && both[1] == right;
+        if (memo.size() >= MEMO_CAP) memo.clear();
+        memo.put(key, ok ? 1 : 0);
+        return ok;
+    }
+
+    /**
+     * Verification mode: tokenizes every word with the automaton and with the ranked merges of the model.
+     *
+     * @param words the words to check
+     * @return the words whose segmentations differ (empty when the two tokenizers agree)
+     */
+    public List<String> verify(Iterable<String> words) {
+        List<String> mismatches = new ArrayList<>();
+        for (String w : words) {
+            if (!tokenize(w).equals(model.tokenize(w))) mismatches.add(w);
+        }
+        return mismatches;
+    }
+
+    /**
+     * @return the model the automaton was compiled from
+     */
+    public BpeModel model() {
+        return model;
+    }
+}
@@ -0,0 +1,96 @@
+package udem.tj.taln;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Turns token ids of a {@link BpeModel} back into text.
+ * <p>
+ * The surface of every token is precomputed once as a {@code char[]}: for a model with the boundary marker, a leading
+ * '_' is stripped and the token starts a new word, so a space is written before it (except for the first word).
+ * Without the marker the tokens are simply concatenated. The unknown token is written as U+FFFD.
+ * The text is written straight into a {@link Writer} or a {@link CharBuffer}, without intermediate strings.
+ * <p>
+ * Words are lowercased by the tokenizer, so decoding gives back the lowercased text. A '_' of the text that
+ * starts a token in the middle of a word is read as a word start too.
+ */
+public class BpeDecoder {
+
+    public static final char REPLACEMENT = '\uFFFD';
+
+    private final char[][] surfaces; // id -> text of the token, without the marker
+    private final boolean[] starts;  // id -> the token starts a word
+
+    /**
+     * Precomputes the text of every token of a model.
+     *
+     * @param model the model the ids come from
+     */
+    public BpeDecoder(BpeModel model) {
+        int n = model.size();
+        surfaces = new char[n][];
+        starts = new boolean[n];
+        for (int id = 0; id < n; id++) {
+            String s = id == BpeModel.UNK_ID ? String.valueOf(REPLACEMENT) : model.symbol(id);
+            if (model.boundary() && s.startsWith("_")) {
+                starts[id] = true;
+                s = s.substring(1);
+            }
+            surfaces[id] = s.toCharArray();
+        }
+    }
+
+    /**
+     * Writes the text of {@code ids[from..to)}.
+     *
+     * @throws IOException if the writer fails
+     */
+    public void decode(int[] ids, int from, int to, Writer out) throws IOException {
+        for (int i = from; i < to; i++) {
+            int id = ids[i];
+            if (starts[id] && i > from) out.write(' ');
+            out.write(surfaces[id]);
+        }
+    }
+
+    /**
+     * Writes the text of {@code ids[from..to)} at the position of the buffer.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer has not enough room left (see {@link #length})
+     */
+    public void decode(int[] ids, int from, int to, CharBuffer out) {
+        for (int i = from; i < to; i++) {
+            int id = ids[i];
+            if (starts[id] && i > from) out.put(' ');
+            out.put(surfaces[id]);
+        }
+    }
+
+    /**
+     * @return the text of {@code ids[from..to)}
+     */
+    public String decode(int[] ids, int from, int to) {
+        StringWriter w = new StringWriter(length(ids, from, to));
+        try {
+            decode(ids, from, to, w);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // a StringWriter does not fail
+        }
+        return w.toString();
+    }
+
+    /**
+     * @return the number of chars the text of {@code ids[from..to)} takes
+     */
+    public int length(int[] ids, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            int id = ids[i];
+            if (starts[id] && i > from) n++;
+            n += surfaces[id].length;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,735 @@
+package udem.tj.taln;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Frozen BPE model compiled once from a merge list and a charset, for tokenization.
+ * <p>
+ * The merges are turned into a primitive pair -> rank table over interned symbol ids (see {@link SymbolTable}),
+ * with the id of the symbol each merge produces, and the charset into a table indexed by {@code char}.
+ * {@link #tokenize(String)} only reads these tables: there is no lookup in global caches and no {@code "left right"}
+ * string is built. The output is the one of {@link BPE#tokenizeWord} and {@link BPE#tokenizeWordFast} for the same
+ * merges and charset.
+ * <p>
+ * Symbol ids: 0 is the unknown token, then the characters of the charset (sorted), then the merged symbols in merge
+ * order, so the ids are contiguous over the unknown token and the token set of the encoding. The {@code encode}
+ * methods write these ids into caller-supplied {@code int[]} or {@link IntBuffer}s, without any per-token string.
+ * Instances are immutable and can be shared between threads; the segmentations of the words seen are kept in a
+ * {@link TokenCache} owned by the model, so entries of different merge lists never mix.
+ * <p>
+ * The tables are NIO buffers: wrapped arrays for a compiled model, views of a read-only memory mapping for a model
+ * {@link #load loaded} from a file written by {@link #save}. A loaded model reads its tables in place, with no parse
+ * step, and the processes loading the same file share its pages in the page cache.
+ */
+public final class BpeModel {
+
+    public static final String UNK = "<UNK>";
+    public static final int UNK_ID = 0;
+
+    private static final int HEAP_MIN_LENGTH = 24; // below, rescanning the word is faster than the heap
+    public static final int DEFAULT_CACHE_CAPACITY = 100_000;
+    private static final int FILE_MAGIC = 0x4250454D; // "BPEM"
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_BYTES = 64;
+    private static final long EMPTY_KEY = -1L;        // free slot of the rank table
+
+    private final boolean boundary;
+    private final int symbolCount;
+    private final int mergeCount;
+    private final boolean unknownMerges; // some merge has the unknown token as operand
+    private final IntBuffer charIds;     // char -> id, UNK_ID when outside the charset
+    private final LongBuffer rankKeys;   // open-addressing pair key -> rank table, EMPTY_KEY in free slots
+    private final IntBuffer rankValues;
+    private final int rankShift, rankMask;
+    private final IntBuffer mergedIds;     // rank -> id of the merged symbol
+    private final IntBuffer mergeOperands; // 2 * rank, 2 * rank + 1 -> ids of the operands, -1 when not a symbol
+    private final IntBuffer spans;         // id -> number of word characters the symbol covers
+    private final IntBuffer symbolOffsets; // id -> start of the symbol in symbolChars, plus the end at symbolCount
+    private final CharBuffer symbolChars;
+    private final String[] symbols;        // id -> symbol, decoded on first use
+    private volatile HashMap<String, Integer> ids; // symbol -> id, built on first use
+    private final TokenCache<int[]> cache; // word -> ids, null when off
+    private final FrozenSegmentations frozen; // precomputed ids of the most frequent words
+
+    /**
+     * The tables of a model, either compiled or mapped from a file.
+     */
+    private record Tables(int symbolCount, int mergeCount, boolean unknownMerges, IntBuffer charIds,
+                          LongBuffer rankKeys, IntBuffer rankValues, IntBuffer mergedIds, IntBuffer mergeOperands,
+                          IntBuffer spans, IntBuffer symbolOffsets, CharBuffer symbolChars) {
+    }
+
+    /**
+     * Compiles a model.
+     *
+     * @param merges   the merges, in rank order, in the {@code "left right"} format
+     * @param charset  the known characters; the other characters become {@link #UNK}
+     * @param boundary whether to prepend the boundary marker ('_') to every word
+     * @throws IllegalArgumentException if a merge is not a {@code "left right"} pair
+     */
+    public BpeModel(List<String> merges, Set<String> charset, boolean boundary) {
+        this(merges, charset, boundary, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Compiles a model with a segmentation cache of the given size.
+     *
+     * @param cacheCapacity the number of word segmentations cached (0 for no cache)
+     */
+    public BpeModel(List<String> merges, Set<String> charset, boolean boundary, int cacheCapacity) {
+        this(merges, charset, boundary, cacheCapacity, List.of());
+    }
+
+    /**
+     * Compiles a model and segments the given words once, into a read-only table consulted before the cache and
+     * before any merge work. Usually the most frequent words of the corpus (see {@link #of(BPE.Encoding, boolean, Map, int)}).
+     *
+     * @param frozenWords the words to precompute
+     */
+    public BpeModel(List<String> merges, Set<String> charset, boolean boundary, int cacheCapacity,
+                    Collection<String> frozenWords) {
+        this(compile(merges, charset), boundary, cacheCapacity, frozenWords, null);
+    }
+
+    private BpeModel(Tables t, boolean boundary, int cacheCapacity, Collection<String> frozenWords,
+                     FrozenSegmentations loaded) {
+        this.boundary = boundary;
+        this.cache = cacheCapacity > 0 ? new TokenCache<>(cacheCapacity) : null;
+        this.symbolCount = t.symbolCount();
+        this.mergeCount = t.mergeCount();
+        this.unknownMerges = t.unknownMerges();
+        this.charIds = t.charIds();
+        this.rankKeys = t.rankKeys();
+        this.rankValues = t.rankValues();
+        this.rankMask = rankKeys.capacity() - 1;
+        this.rankShift = 64 - Integer.numberOfTrailingZeros(rankKeys.capacity());
+        this.mergedIds = t.mergedIds();
+        this.mergeOperands = t.mergeOperands();
+        this.spans = t.spans();
+        this.symbolOffsets = t.symbolOffsets();
+        this.symbolChars = t.symbolChars();
+        this.symbols = new String[symbolCount];
+
+        if (loaded != null) frozen = loaded;
+        else if (frozenWords.isEmpty()) frozen = FrozenSegmentations.EMPTY;
+        else frozen = FrozenSegmentations.build(List.copyOf(new LinkedHashSet<>(frozenWords)), this::merge);
+    }
+
+    /**
+     * Builds the tables of a merge list and a charset, on arrays.
+     */
+    private static Tables compile(List<String> merges, Set<String> charset) {
+        SymbolTable table = new SymbolTable();
+        table.intern(UNK);
+        char maxChar = 0;
+        for (String c : new TreeSet<>(charset)) {
+            if (c.length() != 1) continue;
+            table.intern(c);
+            if (c.charAt(0) > maxChar) maxChar = c.charAt(0);
+        }
+        int[] charIds = new int[maxChar + 1];
+        for (String c : charset) if (c.length() == 1) charIds[c.charAt(0)] = table.find(c);
+
+        // every symbol a word can hold is a character or a merge result, so operands are resolved afterwards:
+        // an operand that is neither can never be adjacent in a word and its merge is left out of the table
+        int mergeCount = merges.size();
+        String[][] operands = new String[mergeCount][];
+        for (int r = 0; r < mergeCount; r++) {
+            String m = merges.get(r);
+            int sp = m.indexOf(' ');
+            if (sp <= 0 || sp == m.length() - 1 || m.indexOf(' ', sp + 1) >= 0)
+                throw new IllegalArgumentException("Invalid merge: '" + m + "'");
+            operands[r] = new String[]{m.substring(0, sp), m.substring(sp + 1)};
+            table.intern(operands[r][0] + operands[r][1]);
+        }
+        int[] mergedIds = new int[mergeCount];
+        int[] mergeOperands = new int[2 * mergeCount];
+        int slots = 8;
+        while (slots < mergeCount * 2L) slots <<= 1; // load factor <= 0.5
+        long[] rankKeys = new long[slots];
+        Arrays.fill(rankKeys, EMPTY_KEY);
+        int[] rankValues = new int[slots];
+        int shift = 64 - Integer.numberOfTrailingZeros(slots);
+        boolean unk = false;
+        for (int r = 0; r < mergeCount; r++) {
+            int left = table.find(operands[r][0]), right = table.find(operands[r][1]);
+            mergedIds[r] = table.find(operands[r][0] + operands[r][1]);
+            mergeOperands[2 * r] = left;
+            mergeOperands[2 * r + 1] = right;
+            // duplicated merges: the last rank wins, as in the rank map of BPE
+            if (left >= 0 && right >= 0) {
+                long key = SymbolTable.pairKey(left, right);
+                int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+                while (rankKeys[i] != EMPTY_KEY && rankKeys[i] != key) i = (i + 1) & (slots - 1);
+                rankKeys[i] = key;
+                rankValues[i] = r;
+            }
+            if (left == UNK_ID || right == UNK_ID) unk = true;
+        }
+
+        int symbolCount = table.size();
+        int[] symbolOffsets = new int[symbolCount + 1];
+        StringBuilder chars = new StringBuilder();
+        for (int id = 0; id < symbolCount; id++) {
+            symbolOffsets[id] = chars.length();
+            chars.append(table.get(id));
+        }
+        symbolOffsets[symbolCount] = chars.length();
+        // the unknown token covers one character, so a merged symbol covers the sum of its operands
+        int[] spans = new int[symbolCount];
+        for (int id = 0; id < symbolCount; id++) spans[id] = id == UNK_ID ? 1 : table.get(id).length();
+        for (int r = 0; r < mergeCount; r++) {
+            int left = mergeOperands[2 * r], right = mergeOperands[2 * r + 1];
+            if (left >= 0 && right >= 0) spans[mergedIds[r]] = spans[left] + spans[right];
+        }
+        return new Tables(symbolCount, mergeCount, unk, IntBuffer.wrap(charIds), LongBuffer.wrap(rankKeys),
+                IntBuffer.wrap(rankValues), IntBuffer.wrap(mergedIds), IntBuffer.wrap(mergeOperands),
+                IntBuffer.wrap(spans), IntBuffer.wrap(symbolOffsets), CharBuffer.wrap(chars.toString().toCharArray()));
+    }
+
+    /**
+     * Compiles the model of an encoding.
+     *
+     * @param enc      the encoding (merges and charset are used)
+     * @param boundary whether the encoding was trained with the boundary marker
+     */
+    public static BpeModel of(BPE.Encoding enc, boolean boundary) {
+        return new BpeModel(enc.merges(), enc.charset(), boundary);
+    }
+
+    /**
+     * Compiles the model of an encoding with the segmentations of the {@code topN} most frequent words precomputed.
+     *
+     * @param counts the word frequencies (typically {@link Count#getCounts()})
+     * @param topN   the number of words to precompute
+     */
+    public static BpeModel of(BPE.Encoding enc, boolean boundary, Map<String, AtomicInteger> counts, int topN) {
+        List<String> top = counts.entrySet().stream()
+                .sorted((a, b) -> a.getValue().get() != b.getValue().get()
+                        ? Integer.compare(b.getValue().get(), a.getValue().get())
+                        : a.getKey().compareTo(b.getKey()))
+                .limit(topN).map(Map.Entry::getKey).toList();
+        return new BpeModel(enc.merges(), enc.charset(), boundary, DEFAULT_CACHE_CAPACITY, top);
+    }
+
+    /**
+     * Compiles the model of an external merges file, such as the {@code merges.txt} of a Hugging Face tokenizer.
+     * <p>
+     * The file is parsed once: empty lines and {@code #} lines (e.g. {@code #version}) are skipped, as are lines
+     * that are not two whitespace-separated symbols. The charset is every character of the merges, plus the
+     * single-character tokens of the vocabulary when one is given. The merges are then applied by rank, which
+     * gives the same tokens as applying each merge in file order over the whole word for a merge list produced by
+     * BPE training (a merge only uses symbols of earlier merges).
+     *
+     * @param mergesFile the merges, one {@code "left right"} pair per line, in rank order
+     * @param vocabFile  a {@code vocab.json} ({@code {"token": id, ...}}), or null
+     * @param boundary   whether to prepend the boundary marker ('_') to every word
+     * @throws IOException if a file cannot be read or the vocabulary is not a JSON object of token ids
+     */
+    public static BpeModel fromMergesFile(Path mergesFile, Path vocabFile, boolean boundary) throws IOException {
+        List<String> merges = new ArrayList<>();
+        Set<String> charset = new HashSet<>();
+        try (BufferedReader br = Files.newBufferedReader(mergesFile)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] sp = line.split("\\s+");
+                if (sp.length != 2) continue;
+                merges.add(sp[0] + " " + sp[1]);
+                for (char c : line.toCharArray()) if (!Character.isWhitespace(c)) charset.add(String.valueOf(c));
+            }
+        }
+        if (vocabFile != null) {
+            for (String token : Utils.readVocabJson(vocabFile).keySet()) if (token.length() == 1) charset.add(token);
+        }
+        return new BpeModel(merges, charset, boundary);
+    }
+
+    /**
+     * Tokenizes a word: lowercased, boundary marker prepended if the model uses it, characters outside the charset
+     * mapped to {@link #UNK}, then the merges applied by rank (lowest rank first, leftmost on ties).
+     *
+     * @param word the word to tokenize
+     * @return the subword tokens, unmodifiable
+     */
+    public List<String> tokenize(String word) {
+        int[] ids = segment(word);
+        List<String> out = new ArrayList<>(ids.length);
+        for (int id : ids) out.add(symbol(id));
+        return List.copyOf(out);
+    }
+
+    /**
+     * Counts the tokens of a word (see {@link #tokenize(String)}) without building them: a lookup in the frozen
+     * table or the cache, or a merge on ids only.
+     *
+     * @return the number of tokens of the word
+     */
+    public int countTokens(String word) {
+        return segment(word).length;
+    }
+
+    /**
+     * Writes the length of every token of a word, in characters of the lowercased word with its marker
+     * ({@link #UNK} counts as one character); the running sum of the lengths gives the token boundaries.
+     *
+     * @param word   the word to tokenize
+     * @param dst    receives the lengths
+     * @param offset the position of the first length in {@code dst}
+     * @return the number of tokens, at most {@link #maxTokens(String)}
+     * @throws IndexOutOfBoundsException if {@code dst} is too small
+     */
+    public int segmentLengths(String word, int[] dst, int offset) {
+        int[] ids = segment(word);
+        for (int i = 0; i < ids.length; i++) dst[offset + i] = spans.get(ids[i]);
+        return ids.length;
+    }
+
+    /**
+     * @return the token ids of a word, from the cache when there is one; the array must not be modified
+     */
+    private int[] segment(String word) {
+        int[] ids = frozen.get(word);
+        if (ids != null) return ids;
+        if (cache == null) return merge(word);
+        ids = cache.get(word);
+        if (ids == null) {
+            ids = merge(word);
+            cache.put(word, ids);
+        }
+        return ids;
+    }
+
+    private int[] merge(String word) {
+        int[] ids = charIds(word);
+        int n = applyMerges(ids);
+        return n == ids.length ? ids : Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * Tokenizes a word into token ids (see {@link #tokenize(String)}).
+     *
+     * @param word   the word to tokenize
+     * @param dst    receives the ids
+     * @param offset the position of the first id in {@code dst}
+     * @return the number of ids written, at most {@link #maxTokens(String)}
+     * @throws IndexOutOfBoundsException if {@code dst} is too small
+     */
+    public int encode(String word, int[] dst, int offset) {
+        int[] ids = segment(word);
+        System.arraycopy(ids, 0, dst, offset, ids.length);
+        return ids.length;
+    }
+
+    /**
+     * Tokenizes a word into token ids, written at the position of the buffer.
+     *
+     * @return the number of ids written
+     * @throws java.nio.BufferOverflowException if the buffer has not enough room left
+     */
+    public int encode(String word, IntBuffer dst) {
+        int[] ids = segment(word);
+        dst.put(ids);
+        return ids.length;
+    }
+
+    /**
+     * Tokenizes sentences into one flat array of token ids.
+     *
+     * @param sentences the sentences, each a list of words
+     * @param dst       receives the ids of all the sentences, one after the other, from index 0
+     *                  (see {@link #maxTokens(List)} for the size)
+     * @param offsets   receives the start of each sentence in {@code dst}, plus the total number of ids at index
+     *                  {@code sentences.size()}; at least {@code sentences.size() + 1} long
+     * @return the total number of ids
+     */
+    public int encode(List<List<String>> sentences, int[] dst, int[] offsets) {
+        int pos = 0;
+        for (int k = 0; k < sentences.size(); k++) {
+            offsets[k] = pos;
+            for (String w : sentences.get(k)) pos += encode(w, dst, pos);
+        }
+        offsets[sentences.size()] = pos;
+        return pos;
+    }
+
+    /**
+     * Tokenizes sentences into a buffer of token ids, from its current position.
+     * The offsets are relative to that position (see {@link #encode(List, int[], int[])}).
+     *
+     * @return the total number of ids
+     * @throws java.nio.BufferOverflowException if the buffer has not enough room left
+     */
+    public int encode(List<List<String>> sentences, IntBuffer dst, int[] offsets) {
+        int pos = 0;
+        for (int k = 0; k < sentences.size(); k++) {
+            offsets[k] = pos;
+            for (String w : sentences.get(k)) pos += encode(w, dst);
+        }
+        offsets[sentences.size()] = pos;
+        return pos;
+    }
+
+    /**
+     * @return the largest number of ids the word can be tokenized into: one per character of the lowercased word
+     * ('\u0130' lowercases to two characters), plus the marker
+     */
+    public int maxTokens(String word) {
+        int n = word.length() + (boundary ? 1 : 0);
+        for (int i = 0; i < word.length(); i++) if (word.charAt(i) == '\u0130') n++;
+        return n;
+    }
+
+    /**
+     * @return the size of an id array large enough for {@link #encode(List, int[], int[])} of these sentences
+     */
+    public int maxTokens(List<List<String>> sentences) {
+        int n = 0;
+        for (List<String> s : sentences) for (String w : s) n += maxTokens(w);
+        return n;
+    }
+
+    /**
+     * Maps the (lowercased, marked) characters of a word to their symbol ids.
+     */
+    int[] charIds(String word) {
+        String lower = word.toLowerCase();
+        int off = boundary ? 1 : 0;
+        int[] ids = new int[lower.length() + off];
+        if (boundary) ids[0] = charId('_');
+        for (int i = 0; i < lower.length(); i++) ids[off + i] = charId(lower.charAt(i));
+        return ids;
+    }
+
+    int charId(char c) {
+        return c < charIds.capacity() ? charIds.get(c) : UNK_ID;
+    }
+
+    /**
+     * @return the rank of the merge of a pair, or {@code def} if the pair does not merge
+     */
+    private int rank(long key, int def) {
+        for (int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> rankShift); ; i = (i + 1) & rankMask) {
+            long k = rankKeys.get(i);
+            if (k == key) return rankValues.get(i);
+            if (k == EMPTY_KEY) return def;
+        }
+    }
+
+    /**
+     * Applies the merges to a segmentation in place, always taking the lowest-ranked pair (leftmost on ties).
+     *
+     * @return the new length of the segmentation
+     */
+    int applyMerges(int[] ids) {
+        return ids.length >= HEAP_MIN_LENGTH ? applyMergesHeap(ids) : applyMergesScan(ids);
+    }
+
+    /**
+     * Rescans the whole segmentation after every merge: O(n^2), but the fastest for the usual short words.
+     */
+    private int applyMergesScan(int[] ids) {
+        int n = ids.length;
+        while (n > 1) {
+            int best = Integer.MAX_VALUE, at = -1;
+            for (int i = 0; i < n - 1; i++) {
+                int r = rank(SymbolTable.pairKey(ids[i], ids[i + 1]), Integer.MAX_VALUE);
+                if (r < best) {
+                    best = r;
+                    at = i;
+                    if (r == 0) break;
+                }
+            }
+            if (at < 0) break;
+            ids[at] = mergedIds.get(best);
+            System.arraycopy(ids, at + 2, ids, at + 1, n - at - 2);
+            n--;
+        }
+        return n;
+    }
+
+    /**
+     * O(n log n) variant for long words (URLs, chemical names, unspaced runs): the symbols form a linked list over
+     * their start positions and the candidate pairs sit in a min-heap ordered by (rank, position), so a merge only
+     * pushes the two pairs it creates with its neighbours. Entries made stale by an earlier merge are skipped when
+     * popped: their left symbol is gone, has no right neighbour any more, or no longer forms a pair of that rank.
+     * Ranks identify pairs, so the (rank, position) order is the lowest-rank-leftmost order of the scan.
+     */
+    private int applyMergesHeap(int[] ids) {
+        int n = ids.length;
+        int[] next = new int[n], prev = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1 < n ? i + 1 : -1;
+        }
+        long[] heap = new long[2 * n]; // n - 1 initial candidates, at most one more per merge
+        int size = 0;
+        for (int i = 0; i < n - 1; i++) {
+            int r = rank(SymbolTable.pairKey(ids[i], ids[i + 1]), -1);
+            if (r >= 0) size = push(heap, size, candidate(r, i));
+        }
+
+        while (size > 0) {
+            long top = heap[0];
+            size = pop(heap, size);
+            int rank = (int) (top >>> 32), at = (int) top;
+            int right = next[at];
+            if (ids[at] < 0 || right < 0) continue;
+            if (rank(SymbolTable.pairKey(ids[at], ids[right]), -1) != rank) continue;
+
+            ids[at] = mergedIds.get(rank);
+            ids[right] = -1;
+            next[at] = next[right];
+            if (next[at] >= 0) prev[next[at]] = at;
+            if (prev[at] >= 0) {
+                int r = rank(SymbolTable.pairKey(ids[prev[at]], ids[at]), -1);
+                if (r >= 0) size = push(heap, size, candidate(r, prev[at]));
+            }
+            if (next[at] >= 0) {
+                int r = rank(SymbolTable.pairKey(ids[at], ids[next[at]]), -1);
+                if (r >= 0) size = push(heap, size, candidate(r, at));
+            }
+        }
+
+        int m = 0;
+        for (int i = 0; i >= 0; i = next[i]) ids[m++] = ids[i];
+        return m;
+    }
+
+    private static long candidate(int rank, int position) {
+        return ((long) rank << 32) | position;
+    }
+
+    /**
+     * Pushes a value on a binary min-heap stored in {@code heap[0..size)}.
+     *
+     * @return the new size
+     */
+    private static int push(long[] heap, int size, long value) {
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+        return size + 1;
+    }
+
+    /**
+     * Removes the minimum of a binary min-heap stored in {@code heap[0..size)}.
+     *
+     * @return the new size
+     */
+    private static int pop(long[] heap, int size) {
+        long last = heap[--size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= last) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (size > 0) heap[i] = last;
+        return size;
+    }
+
+    /**
+     * @return the number of words whose segmentation is precomputed
+     */
+    public int frozenSize() {
+        return frozen.size();
+    }
+
+    /**
+     * Saves the model in the binary format read by {@link #load(Path, int)}.
+     * <p>
+     * Little-endian, version {@value #FILE_VERSION}: a {@value #HEADER_BYTES}-byte header (magic, version, flags,
+     * table sizes), then the tables, each starting on an 8-byte boundary: rank table keys ({@code long}) and values,
+     * merged ids, merge operands (id pairs), char -> id table, symbol spans, symbol offsets and symbol characters
+     * (UTF-16). The precomputed segmentations come last, as (word length, chars, ids length, ids) records.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        int[] at = layout(symbolCount, mergeCount, charIds.capacity(), rankKeys.capacity(), symbolChars.capacity());
+        int frozenBytes = 0;
+        for (int slot = 0; slot < frozen.slots(); slot++) {
+            if (frozen.keyAt(slot) != null)
+                frozenBytes += 8 + 2 * frozen.keyAt(slot).length() + 4 * frozen.valueAt(slot).length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(at[8] + frozenBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt((boundary ? 1 : 0) | (unknownMerges ? 2 : 0))
+                .putInt(symbolCount).putInt(mergeCount).putInt(charIds.capacity()).putInt(rankKeys.capacity())
+                .putInt(symbolChars.capacity()).putInt(frozen.size());
+        buf.position(at[0]).asLongBuffer().put(rankKeys.duplicate().clear());
+        buf.position(at[1]).asIntBuffer().put(rankValues.duplicate().clear());
+        buf.position(at[2]).asIntBuffer().put(mergedIds.duplicate().clear());
+        buf.position(at[3]).asIntBuffer().put(mergeOperands.duplicate().clear());
+        buf.position(at[4]).asIntBuffer().put(charIds.duplicate().clear());
+        buf.position(at[5]).asIntBuffer().put(spans.duplicate().clear());
+        buf.position(at[6]).asIntBuffer().put(symbolOffsets.duplicate().clear());
+        buf.position(at[7]).asCharBuffer().put(symbolChars.duplicate().clear());
+        buf.position(at[8]);
+        for (int slot = 0; slot < frozen.slots(); slot++) {
+            String w = frozen.keyAt(slot);
+            if (w == null) continue;
+            buf.putInt(w.length());
+            for (int i = 0; i < w.length(); i++) buf.putChar(w.charAt(i));
+            buf.putInt(frozen.valueAt(slot).length);
+            for (int id : frozen.valueAt(slot)) buf.putInt(id);
+        }
+        buf.flip();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+    }
+
+    /**
+     * @return the byte offsets of the tables of a model file, in file order, then the one of the segmentations
+     */
+    private static int[] layout(int symbolCount, int mergeCount, int charTable, int rankSlots, int symbolChars) {
+        long[] bytes = {8L * rankSlots, 4L * rankSlots, 4L * mergeCount, 8L * mergeCount, 4L * charTable,
+                4L * symbolCount, 4L * (symbolCount + 1), 2L * symbolChars};
+        int[] at = new int[bytes.length + 1];
+        long pos = HEADER_BYTES;
+        for (int i = 0; i < bytes.length; i++) {
+            at[i] = (int) pos;
+            pos = (pos + bytes[i] + 7) & ~7L;
+            if (pos > Integer.MAX_VALUE) throw new IllegalStateException("Model too large for a model file");
+        }
+        at[bytes.length] = (int) pos;
+        return at;
+    }
+
+    /**
+     * Loads a model written by {@link #save(Path)}. The file is memory-mapped and the tables are read in place;
+     * only the precomputed segmentations are decoded.
+     *
+     * @param file          the file to read
+     * @param cacheCapacity the number of word segmentations cached (0 for no cache)
+     * @throws IOException if the file cannot be read, is not a model file or has another version
+     */
+    public static BpeModel load(Path file, int cacheCapacity) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_BYTES) throw new IOException("Not a BPE model file: " + file);
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buf.getInt(0) != FILE_MAGIC) throw new IOException("Not a BPE model file: " + file);
+        if (buf.getInt(4) != FILE_VERSION)
+            throw new IOException("Unsupported BPE model file version " + buf.getInt(4) + ": " + file);
+        int flags = buf.getInt(8), symbolCount = buf.getInt(12), mergeCount = buf.getInt(16);
+        int charTable = buf.getInt(20), rankSlots = buf.getInt(24), symbolChars = buf.getInt(28);
+        int frozenCount = buf.getInt(32);
+        int[] at = layout(symbolCount, mergeCount, charTable, rankSlots, symbolChars);
+        if (at[8] > buf.capacity() || Integer.bitCount(rankSlots) != 1)
+            throw new IOException("Corrupted BPE model file: " + file);
+
+        Tables t = new Tables(symbolCount, mergeCount, (flags & 2) != 0,
+                buf.slice(at[4], 4 * charTable).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                buf.slice(at[0], 8 * rankSlots).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer(),
+                buf.slice(at[1], 4 * rankSlots).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                buf.slice(at[2], 4 * mergeCount).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                buf.slice(at[3], 8 * mergeCount).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                buf.slice(at[5], 4 * symbolCount).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                buf.slice(at[6], 4 * (symbolCount + 1)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+                buf.slice(at[7], 2 * symbolChars).order(ByteOrder.LITTLE_ENDIAN).asCharBuffer());
+
+        List<String> words = new ArrayList<>(frozenCount);
+        List<int[]> segments = new ArrayList<>(frozenCount);
+        try {
+            buf.position(at[8]);
+            for (int k = 0; k < frozenCount; k++) {
+                char[] w = new char[buf.getInt()];
+                for (int i = 0; i < w.length; i++) w[i] = buf.getChar();
+                words.add(new String(w));
+                int[] seg = new int[buf.getInt()];
+                for (int i = 0; i < seg.length; i++) seg[i] = buf.getInt();
+                segments.add(seg);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Corrupted BPE model file: " + file, e);
+        }
+        return new BpeModel(t, (flags & 1) != 0, cacheCapacity, List.of(), new FrozenSegmentations(words, segments));
+    }
+
+    /**
+     * @return the counters of the segmentation cache, null when the model has no cache
+     */
+    public TokenCache.Stats cacheStats() {
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * @return the id of a token, {@link #UNK_ID} if it is not in the model
+     */
+    public int id(String token) {
+        HashMap<String, Integer> map = ids;
+        if (map == null) {
+            map = new HashMap<>(symbolCount * 2);
+            for (int id = 0; id < symbolCount; id++) map.put(symbol(id), id);
+            ids = map;
+        }
+        return map.getOrDefault(token, UNK_ID);
+    }
+
+    /**
+     * @return the symbol of an id
+     */
+    public String symbol(int id) {
+        String s = symbols[id];
+        if (s == null) {
+            // racy but safe: every thread decodes the same immutable string
+            s = symbolChars.duplicate().position(symbolOffsets.get(id)).limit(symbolOffsets.get(id + 1)).toString();
+            symbols[id] = s;
+        }
+        return s;
+    }
+
+    /**
+     * @return the number of symbol ids (unknown token, characters and merged symbols)
+     */
+    public int size() {
+        return symbolCount;
+    }
+
+    /**
+     * @return the number of merges of the model
+     */
+    public int mergeCount() {
+        return mergeCount;
+    }
+
+    public boolean boundary() {
+        return boundary;
+    }
+
+    /**
+     * @return true if a merge takes the unknown token as operand, so that merges can cross unknown characters
+     */
+    boolean unknownMerges() {
+        return unknownMerges;
+    }
+
+    @Override
+    public String toString() {
+        int chars = 0;
+        for (int c = 0; c < charIds.capacity(); c++) if (charIds.get(c) != UNK_ID) chars++;
+        return "BpeModel{symbols=" + symbolCount + ", merges=" + mergeCount + ", boundary=" + boundary
+                + ", charset=" + chars + "}";
+    }
+}
@@ -0,0 +1,541 @@
+package udem.tj.taln;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * BPE trainer working on interned symbol ids instead of strings.
+ * <p>
+ * Every symbol is interned once in a {@link SymbolTable}, every word is an {@code int[]} of symbol ids
+ * and every adjacent pair is keyed by a packed {@code long} (see {@link SymbolTable#pairKey(int, int)}),
+ * with the global pair statistics held in a primitive {@link LongIntMap}.
+ * The merges are converted back to {@code "left right"} strings only when they are recorded, so the produced
+ * {@link BPE.Encoding} is the same as the one of {@link BPE#encodeParam}.
+ * <p>
+ * The words are partitioned into shards, each owning its pair -> words index and a buffer of pair count deltas.
+ * The initial pair statistics and the application of a merge run on every shard in parallel (fork/join), then the
+ * shard buffers are reduced into the global counts. Counts are sums, so the result does not depend on the
+ * scheduling: with a parallelism of 1 (a single shard) the trainer is the sequential one and gives the same merges.
+ * <p>
+ * The pair counts live in an indexed {@link PairHeap}: a count change moves the pair in place, so there are no
+ * stale queue records. Pairs of equal count are ordered by their {@code "left right"} string, which makes the merge
+ * order deterministic.
+ */
+public class BpeTrainer {
+
+    private static final int SHARDS_PER_THREAD = 4;
+    private static final int PARALLEL_MIN_WORDS = 1024; // below, a merge is applied in the calling thread
+
+    private final boolean boundary;
+    private final SymbolTable symbols = new SymbolTable();
+    private final HashSet<String> charset = new HashSet<>();
+    private final HashSet<String> tokens;
+    private final List<String> merges = new ArrayList<>();
+    private long[] mergePairs = new long[64];  // pair key of each merge
+    private int[] mergeCounts = new int[64];   // count of the best pair when it was merged
+    private int[] mergeResults = new int[64];  // symbol id produced by each merge
+
+    private final int[][] words;   // current segmentation of each word, rewritten in place
+    private final int[] len;       // live length of each segmentation
+    private final int[] freq;      // frequency of each word
+
+    private final Shard[] shards;
+    private final int parallelism;
+    private ForkJoinPool pool; // own pool of the running operation, null if it runs on the common pool
+
+    private final PairHeap heap;  // live pair counts, best pair on top
+    private final LongIntMap deltas = new LongIntMap();  // reduced pair count changes of the current merge
+
+    private Path checkpoint;  // null when checkpoints are off
+    private int checkpointEvery;
+
+    /**
+     * Builds a sequential trainer.
+     *
+     * @param counts   a mapping of words to their frequencies
+     * @param boundary whether to prepend the boundary marker ('_') to every word
+     * @throws IllegalArgumentException if {@code counts} is null or empty
+     */
+    public BpeTrainer(Map<String, AtomicInteger> counts, boolean boundary) {
+        this(counts, boundary, 1);
+    }
+
+    /**
+     * Builds the initial training state: character segmentation of every word and global pair statistics.
+     *
+     * @param counts      a mapping of words to their frequencies
+     * @param boundary    whether to prepend the boundary marker ('_') to every word
+     * @param parallelism the number of worker threads (1 for a sequential trainer)
+     * @throws IllegalArgumentException if {@code counts} is null or empty
+     */
+    public BpeTrainer(Map<String, AtomicInteger> counts, boolean boundary, int parallelism) {
+        if (counts == null || counts.isEmpty()) throw new IllegalArgumentException("Empty vocabulary.");
+        this.boundary = boundary;
+
+        int n = counts.size();
+        words = new int[n][];
+        len = new int[n];
+        freq = new int[n];
+        int wid = 0;
+        for (var e : counts.entrySet()) {
+            String surface = boundary ? ("_" + e.getKey()) : e.getKey();
+            int[] toks = new int[surface.length()];
+            for (int i = 0; i < surface.length(); i++) {
+                String c = String.valueOf(surface.charAt(i));
+                charset.add(c);
+                toks[i] = symbols.intern(c);
+            }
+            words[wid] = toks;
+            len[wid] = toks.length;
+            freq[wid++] = e.getValue().get();
+        }
+        tokens = new HashSet<>(charset);
+
+        int nShards = parallelism <= 1 ? 1 : Math.min(n, parallelism * SHARDS_PER_THREAD);
+        shards = new Shard[nShards];
+        for (int s = 0; s < nShards; s++) {
+            shards[s] = new Shard((int) ((long) n * s / nShards), (int) ((long) n * (s + 1) / nShards));
+        }
+        this.parallelism = parallelism;
+
+        // initial statistics: per-shard counts, reduced into the global map
+        openPool();
+        try {
+            forEachShard(Shard::countPairs, true);
+        } finally {
+            closePool();
+        }
+        LongIntMap pairCounts = new LongIntMap(symbols.size() * 16);
+        for (Shard s : shards) {
+            s.deltas.forEach(pairCounts::addTo);
+            s.deltas.clear();
+        }
+        heap = new PairHeap(pairCounts, symbols::comparePairs);
+    }
+
+    /**
+     * Runs merges until the vocabulary target, the merge cap or the minimum pair frequency is reached.
+     * The targets are absolute: a second call with a larger target continues from the current state.
+     *
+     * @param vocabSize    the desired vocabulary size (characters + merges)
+     * @param minPairFreq  the minimum count of the best pair for a merge to be made
+     * @param maxMergesCap the maximum number of merges
+     * @return the number of merges made by this call
+     */
+    public int train(int vocabSize, int minPairFreq, int maxMergesCap) {
+        int budget = budget(vocabSize, maxMergesCap);
+
+        openPool();
+        try {
+            int done = 0;
+            while (merges.size() < budget) {
+                // the best pair stays in the heap: the merge deltas bring its count to zero
+                if (heap.isEmpty() || heap.peekCount() < minPairFreq) break;
+                long top = heap.peekPair();
+                int topCount = heap.peekCount();
+
+                long totalRepl = applyMerge(top);
+                heap.recordPop(totalRepl < 0);
+                if (totalRepl < 0) {
+                    heap.remove(top);
+                    continue;
+                }
+                if (totalRepl == 0) break;
+
+                recordMerge(top, topCount);
+                done++;
+                if (checkpoint != null && merges.size() % checkpointEvery == 0) writeCheckpoint();
+            }
+            if (checkpoint != null && done > 0) writeCheckpoint();
+            return done;
+        } finally {
+            closePool();
+        }
+    }
+
+    /**
+     * Replays a previously learned merge list on the current state, without any pair selection,
+     * so that training can go on from there (see {@link #train(int, int, int)}).
+     * Each merge is applied through the pair index and the local deltas, like during training.
+     * Merges with no occurrence in these words are kept in the list, to stay rank-compatible with the source.
+     *
+     * @param learned merges in the {@code "left right"} format of the merges files
+     * @return the number of merges replayed
+     * @throws IllegalArgumentException if a line is not a {@code "left right"} pair
+     */
+    public int replay(List<String> learned) {
+        openPool();
+        try {
+            int done = 0;
+            for (String line : learned) {
+                if (line.isEmpty()) continue;
+                int sp = line.indexOf(' ');
+                if (sp <= 0 || sp == line.length() - 1 || line.indexOf(' ', sp + 1) >= 0)
+                    throw new IllegalArgumentException("Invalid merge: '" + line + "'");
+                long pair = SymbolTable.pairKey(symbols.intern(line.substring(0, sp)),
+                        symbols.intern(line.substring(sp + 1)));
+                int count = heap.count(pair);
+                applyMerge(pair);
+                recordMerge(pair, count);
+                done++;
+            }
+            return done;
+        } finally {
+            closePool();
+        }
+    }
+
+    /**
+     * Merges every occurrence of a pair in the words containing it and applies the reduced deltas to the heap.
+     *
+     * @return the frequency-weighted number of merges made, or -1 if no word was indexed for the pair
+     */
+    private long applyMerge(long pair) {
+        // every occurrence of the pair is merged below, so its index entries are dropped
+        int impacted = 0;
+        for (Shard s : shards) {
+            s.pending = s.pairToWords.remove(pair);
+            if (s.pending != null) impacted += s.pending.size();
+        }
+        if (impacted == 0) return -1;
+
+        int left = SymbolTable.pairLeft(pair), right = SymbolTable.pairRight(pair);
+        int merged = symbols.intern(symbols.get(left) + symbols.get(right));
+
+        forEachShard(s -> s.merge(left, right, merged), impacted >= PARALLEL_MIN_WORDS);
+
+        long totalRepl = 0;
+        deltas.clear();
+        for (Shard s : shards) {
+            if (s.pending == null) continue;
+            s.pending = null;
+            totalRepl += s.replaced;
+            s.deltas.forEach(deltas::addTo);
+            s.deltas.clear();
+        }
+        if (totalRepl > 0) deltas.forEach(heap::add);
+        return totalRepl;
+    }
+
+    /**
+     * Writes the merges made so far to {@code file} every {@code every} merges (and at the end of each
+     * {@link #train(int, int, int)} call), so that a killed run can be resumed with {@link #readMerges(Path)} and
+     * {@link #replay(List)}. The file has the format of the merges files and is replaced atomically.
+     *
+     * @param file  the checkpoint file
+     * @param every the number of merges between two checkpoints
+     */
+    public void checkpointTo(Path file, int every) {
+        if (every <= 0) throw new IllegalArgumentException("Checkpoint interval must be positive: " + every);
+        this.checkpoint = file;
+        this.checkpointEvery = every;
+    }
+
+    private void writeCheckpoint() {
+        try {
+            Path parent = checkpoint.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            Files.write(tmp, merges, StandardCharsets.UTF_8);
+            Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Checkpoint write failed: " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Reads a merges file (or a checkpoint), one {@code "left right"} merge per line, skipping empty lines.
+     *
+     * @param file the file to read
+     * @return the merges, in order
+     */
+    public static List<String> readMerges(Path file) {
+        try {
+            List<String> out = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) if (!line.isEmpty()) out.add(line);
+            return out;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read merges file " + file, e);
+        }
+    }
+
+    /**
+     * Creates the pool of an operation (construction, {@link #train} or {@link #replay}) of a parallel trainer, unless
+     * the common pool has its parallelism; {@link #closePool()} shuts it down at the end of the operation.
+     */
+    private void openPool() {
+        if (shards.length > 1 && parallelism != ForkJoinPool.getCommonPoolParallelism())
+            pool = new ForkJoinPool(parallelism);
+    }
+
+    private void closePool() {
+        if (pool != null) pool.shutdown();
+        pool = null;
+    }
+
+    /**
+     * Runs an action on every shard, on the fork/join pool if {@code parallel} and the trainer is not sequential.
+     */
+    private void forEachShard(Consumer<Shard> action, boolean parallel) {
+        if (shards.length == 1 || !parallel) {
+            for (Shard s : shards) action.accept(s);
+            return;
+        }
+        (pool != null ? pool : ForkJoinPool.commonPool()).invoke(new ShardTask(action, 0, shards.length));
+    }
+
+    /**
+     * Fork/join task splitting a range of shards in halves until a single shard is left.
+     */
+    private final class ShardTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient Consumer<Shard> action;
+        private final int lo, hi;
+
+        ShardTask(Consumer<Shard> action, int lo, int hi) {
+            this.action = action;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                action.accept(shards[lo]);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ShardTask(action, lo, mid), new ShardTask(action, mid, hi));
+        }
+    }
+
+    /**
+     * A contiguous range of words with its own pair -> words index and delta buffer.
+     * A shard is only ever touched by one thread at a time, and only writes the words of its range.
+     */
+    private final class Shard {
+        final int from, to;
+        final HashMap<Long, IntSet> pairToWords = new HashMap<>();
+        final LongIntMap deltas = new LongIntMap();
+        IntSet pending;  // words of this shard containing the pair being merged
+        long replaced;   // frequency-weighted merges made by the last call to merge
+
+        Shard(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Counts the pairs of the shard's words into {@link #deltas} and indexes them.
+         */
+        void countPairs() {
+            for (int id = from; id < to; id++) {
+                int[] toks = words[id];
+                for (int i = 0; i < len[id] - 1; i++) {
+                    if (freq[id] > 0) indexPair(SymbolTable.pairKey(toks[i], toks[i + 1]), id, freq[id]);
+                }
+            }
+        }
+
+        /**
+         * Applies the merge to the pending words of the shard.
+         */
+        void merge(int left, int right, int merged) {
+            replaced = 0;
+            if (pending == null) return;
+            for (int id : pending.toArray()) replaced += (long) mergeInWord(id, left, right, merged) * freq[id];
+        }
+
+        /**
+         * Replaces every left-to-right occurrence of (left, right) by the merged symbol, in place:
+         * a single read/write pass compacts the word and only its live length changes.
+         * <p>
+         * Only the neighbours of a merge site can change, so the pair deltas are emitted locally at each site
+         * (the merged pair itself, the pairs with the previous and the next symbol) into {@link #deltas},
+         * weighted by the word frequency. Pairs created by the merge are indexed for this word; pairs that disappear
+         * are left in the index and skipped later, when merging finds no occurrence in the word.
+         *
+         * @param id the word to rewrite
+         * @return the number of merges made in the word
+         */
+        int mergeInWord(int id, int left, int right, int merged) {
+            int[] toks = words[id];
+            int n = len[id];
+            int f = freq[id];
+            int w = 0;
+            for (int i = 0; i < n; ) {
+                if (i < n - 1 && toks[i] == left && toks[i + 1] == right) {
+                    deltas.addTo(SymbolTable.pairKey(left, right), -f);
+                    if (w > 0) {
+                        // previous symbol, already rewritten (it may be the result of the previous merge)
+                        int prev = toks[w - 1];
+                        deltas.addTo(SymbolTable.pairKey(prev, left), -f);
+                        indexPair(SymbolTable.pairKey(prev, merged), id, f);
+                    }
+                    if (i + 2 < n) {
+                        int next = toks[i + 2];
+                        deltas.addTo(SymbolTable.pairKey(right, next), -f);
+                        indexPair(SymbolTable.pairKey(merged, next), id, f);
+                    }
+                    toks[w++] = merged;
+                    i += 2;
+                } else {
+                    toks[w++] = toks[i++];
+                }
+            }
+            len[id] = w;
+            return n - w;
+        }
+
+        private void indexPair(long pair, int id, int f) {
+            deltas.addTo(pair, f);
+            pairToWords.computeIfAbsent(pair, _ -> new IntSet()).add(id);
+        }
+    }
+
+    private int budget(int vocabSize, int maxMergesCap) {
+        int want = Math.max(vocabSize, charset.size());
+        return Math.min(maxMergesCap, Math.max(0, want - charset.size()));
+    }
+
+    private void recordMerge(long pair, int count) {
+        int merged = symbols.intern(symbols.get(SymbolTable.pairLeft(pair)) + symbols.get(SymbolTable.pairRight(pair)));
+        int k = merges.size();
+        if (k == mergePairs.length) {
+            mergePairs = Arrays.copyOf(mergePairs, k * 2);
+            mergeCounts = Arrays.copyOf(mergeCounts, k * 2);
+            mergeResults = Arrays.copyOf(mergeResults, k * 2);
+        }
+        mergePairs[k] = pair;
+        mergeCounts[k] = count;
+        mergeResults[k] = merged;
+        merges.add(symbols.pairString(pair));
+        tokens.add(symbols.get(merged));
+    }
+
+    /**
+     * Number of merges a training run with the given parameters makes, derived from the recorded merge sequence.
+     * <p>
+     * The best-pair count never increases from one merge to the next, and a smaller budget only stops earlier,
+     * so the merges of any (vocabSize, minPairFreq) run are a prefix of the merges of a run with a larger budget and a
+     * lower minimum frequency. If the recorded sequence is too short to decide, training continues first.
+     *
+     * @param vocabSize    the desired vocabulary size
+     * @param minPairFreq  the minimum count of a merged pair
+     * @param maxMergesCap the maximum number of merges
+     * @return the length of the merge prefix of that run
+     */
+    public int prefixLength(int vocabSize, int minPairFreq, int maxMergesCap) {
+        int budget = budget(vocabSize, maxMergesCap);
+        int n = 0;
+        while (true) {
+            while (n < merges.size() && n < budget && mergeCounts[n] >= minPairFreq) n++;
+            if (n < merges.size() || n >= budget) return n;
+            // the sequence ends here: either training stopped for good, or it must go on
+            if (train(vocabSize, minPairFreq, maxMergesCap) == 0) return n;
+        }
+    }
+
+    /**
+     * @return the merges the run with the given parameters makes (see {@link #prefixLength(int, int, int)})
+     */
+    public List<String> mergesFor(int vocabSize, int minPairFreq, int maxMergesCap) {
+        return List.copyOf(merges.subList(0, prefixLength(vocabSize, minPairFreq, maxMergesCap)));
+    }
+
+    /**
+     * Builds the {@link BPE.Encoding} the run with the given parameters produces, from the merge prefix.
+     * The segmented vocabulary is rebuilt by applying the prefix merges by rank to every word.
+     */
+    public BPE.Encoding encodingFor(int vocabSize, int minPairFreq, int maxMergesCap) {
+        int n = prefixLength(vocabSize, minPairFreq, maxMergesCap);
+        if (n == merges.size()) return toEncoding();
+
+        LongIntMap ranks = new LongIntMap(n);
+        for (int k = 0; k < n; k++) ranks.put(mergePairs[k], k);
+        HashSet<String> prefixTokens = new HashSet<>(charset);
+        for (int k = 0; k < n; k++) prefixTokens.add(symbols.get(mergeResults[k]));
+
+        HashMap<String, Integer> vocabOut = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        int[] buf = new int[16];
+        for (int id = 0; id < words.length; id++) {
+            // back to characters
+            int m = 0;
+            for (int i = 0; i < len[id]; i++) {
+                String sym = symbols.get(words[id][i]);
+                if (m + sym.length() > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, m + sym.length()));
+                for (int c = 0; c < sym.length(); c++) buf[m++] = symbols.find(String.valueOf(sym.charAt(c)));
+            }
+            // lowest-ranked pair first, leftmost on ties
+            while (m > 1) {
+                int best = Integer.MAX_VALUE, at = -1;
+                for (int i = 0; i < m - 1; i++) {
+                    int r = ranks.get(SymbolTable.pairKey(buf[i], buf[i + 1]), Integer.MAX_VALUE);
+                    if (r < best) {
+                        best = r;
+                        at = i;
+                    }
+                }
+                if (at < 0) break;
+                buf[at] = mergeResults[best];
+                System.arraycopy(buf, at + 2, buf, at + 1, m - at - 2);
+                m--;
+            }
+            sb.setLength(0);
+            for (int i = 0; i < m; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(symbols.get(buf[i]));
+            }
+            vocabOut.merge(sb.toString(), freq[id], Integer::sum);
+        }
+        return new BPE.Encoding(vocabOut, new ArrayList<>(merges.subList(0, n)), new HashSet<>(charset), prefixTokens);
+    }
+
+    /**
+     * @return the merges made so far, in order
+     */
+    public List<String> merges() {
+        return merges;
+    }
+
+    public boolean boundary() {
+        return boundary;
+    }
+
+    /**
+     * @return the counters of the pair heap (live pairs, in-place updates, stale pops)
+     */
+    public PairHeap.Stats queueStats() {
+        return heap.stats();
+    }
+
+    /**
+     * Builds the {@link BPE.Encoding} of the current training state: the segmented vocabulary
+     * (symbols joined by spaces, mapped to their global frequency), the merges, the charset and the tokens.
+     */
+    public BPE.Encoding toEncoding() {
+        HashMap<String, Integer> vocabOut = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        for (int id = 0; id < words.length; id++) {
+            sb.setLength(0);
+            for (int i = 0; i < len[id]; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(symbols.get(words[id][i]));
+            }
+            vocabOut.merge(sb.toString(), freq[id], Integer::sum);
+        }
+        return new BPE.Encoding(vocabOut, new ArrayList<>(merges), new HashSet<>(charset), new HashSet<>(tokens));
+    }
+}
@@ -0,0 +1,206 @@
+package udem.tj.taln;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Byte-level reader of a memory-mapped UTF-8 corpus, handing its lines to a {@link LineSink} without creating any
+ * {@code String}.
+ * <p>
+ * The file is mapped once with {@link FileChannel#map}. Lines are found by scanning the bytes for line ends
+ * ({@code '\n'}, {@code "\r\n"} or {@code '\r'}, as {@link java.io.BufferedReader#readLine()}) and decoded into a
+ * reused {@code char[]}; a line which is not well-formed UTF-8 is decoded by the JDK (malformed bytes become
+ * U+FFFD), as a reader would. With a {@link PreTokenizer} and a {@link WordCounter} behind the sink, the characters
+ * of a word are only copied when the word is first seen.
+ * <p>
+ * Not thread-safe; {@link #fork()} gives another scanner of the same mapping for another thread.
+ */
+public class CorpusScanner {
+
+    /**
+     * Receives the lines as slices of a buffer which is reused after the call.
+     */
+    public interface LineSink {
+        /**
+         * @return false to stop the scan
+         */
+        boolean accept(char[] chars, int offset, int length);
+    }
+
+    private final ByteBuffer bytes;
+    private char[] line = new char[256];
+    private byte[] raw = new byte[0];  // bytes of a malformed line
+
+    /**
+     * Maps a file.
+     *
+     * @param file the UTF-8 corpus
+     * @throws IOException if the file cannot be read or is larger than 2 GB
+     */
+    public CorpusScanner(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) throw new IOException("File too large to map: " + file);
+            this.bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    private CorpusScanner(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Maps the file {@link Utils#getReader(String)} would read, when the scanner reads it as the reader would.
+     *
+     * @param file the file name or path
+     * @return the scanner, or null if the file is a classpath resource inside an archive, cannot be found, is larger
+     * than 2 GB, or if the default charset (the one of the reader) is not UTF-8
+     * @throws IOException if the file cannot be mapped
+     */
+    public static CorpusScanner open(String file) throws IOException {
+        if (!Charset.defaultCharset().equals(StandardCharsets.UTF_8)) return null;
+        Path path = Utils.resolveFile(file);
+        if (path == null || Files.size(path) > Integer.MAX_VALUE) return null;
+        return new CorpusScanner(path);
+    }
+
+    /**
+     * Reads every line of a file, mapped if {@link #open(String)} can, else with a {@link BufferedReader}.
+     *
+     * @param file the file name or path (see {@link Utils#getReader(String)})
+     * @param sink receives the lines, until it returns false
+     * @throws IOException if the file cannot be read
+     */
+    public static void readLines(String file, LineSink sink) throws IOException {
+        CorpusScanner scanner = open(file);
+        if (scanner != null) {
+            scanner.forEachLine(0, scanner.size(), sink);
+            return;
+        }
+        try (BufferedReader br = new BufferedReader(Utils.getReader(file), 1 << 20)) {
+            char[] chars = new char[256];
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (chars.length < line.length()) chars = new char[Math.max(line.length(), chars.length * 2)];
+                line.getChars(0, line.length(), chars, 0);
+                if (!sink.accept(chars, 0, line.length())) return;
+            }
+        }
+    }
+
+    /**
+     * @return a scanner of the same mapping, with its own buffers
+     */
+    public CorpusScanner fork() {
+        return new CorpusScanner(bytes);
+    }
+
+    /**
+     * @return the size of the file, in bytes
+     */
+    public int size() {
+        return bytes.limit();
+    }
+
+    /**
+     * @param pos the start of a line
+     * @return the start of the next line (after the line end), or {@link #size()}
+     */
+    public int lineEnd(int pos) {
+        int limit = bytes.limit();
+        while (pos < limit) {
+            byte b = bytes.get(pos++);
+            if (b == '\n') break;
+            if (b == '\r') {
+                if (pos < limit && bytes.get(pos) == '\n') pos++;
+                break;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes the lines of a byte range.
+     *
+     * @param from the start of a line
+     * @param to   the start of a line, or {@link #size()}
+     * @param sink receives the lines, in order, until it returns false
+     * @return the number of lines read
+     */
+    public int forEachLine(int from, int to, LineSink sink) {
+        int lines = 0;
+        int pos = from;
+        while (pos < to) {
+            int end = pos;
+            byte b = 0;
+            while (end < to && (b = bytes.get(end)) != '\n' && b != '\r') end++;
+            int n = decode(pos, end);
+            if (n < 0) n = decodeMalformed(pos, end);
+            lines++;
+            if (!sink.accept(line, 0, n)) break;
+            pos = end + 1;
+            if (b == '\r' && pos < to && bytes.get(pos) == '\n') pos++;
+        }
+        return lines;
+    }
+
+    /**
+     * Decodes well-formed UTF-8 into {@link #line}.
+     *
+     * @return the number of chars, or -1 if the bytes are not well-formed
+     */
+    private int decode(int from, int to) {
+        if (line.length < to - from) line = new char[Math.max(to - from, line.length * 2)]; // chars <= bytes
+        char[] dst = line;
+        int n = 0;
+        for (int i = from; i < to; ) {
+            int b = bytes.get(i++);
+            if (b >= 0) {
+                dst[n++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (i >= to) return -1;
+                int b1 = bytes.get(i++);
+                if ((b1 & 0xC0) != 0x80 || (b & 0x1E) == 0) return -1;
+                dst[n++] = (char) (((b & 0x1F) << 6) | (b1 & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                if (i + 1 >= to) return -1;
+                int b1 = bytes.get(i++), b2 = bytes.get(i++);
+                if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80) return -1;
+                char c = (char) (((b & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F));
+                if (c < 0x800 || Character.isSurrogate(c)) return -1;
+                dst[n++] = c;
+            } else if ((b & 0xF8) == 0xF0) {
+                if (i + 2 >= to) return -1;
+                int b1 = bytes.get(i++), b2 = bytes.get(i++), b3 = bytes.get(i++);
+                if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) return -1;
+                int cp = ((b & 0x07) << 18) | ((b1 & 0x3F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+                if (cp < 0x10000 || cp > Character.MAX_CODE_POINT) return -1;
+                dst[n++] = Character.highSurrogate(cp);
+                dst[n++] = Character.lowSurrogate(cp);
+            } else {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes a line with the replacements of the JDK decoder into {@link #line}.
+     *
+     * @return the number of chars
+     */
+    private int decodeMalformed(int from, int to) {
+        if (raw.length < to - from) raw = new byte[to - from];
+        bytes.get(from, raw, 0, to - from);
+        String s = new String(raw, 0, to - from, StandardCharsets.UTF_8);
+        if (line.length < s.length()) line = new char[s.length()];
+        s.getChars(0, s.length(), line, 0);
+        return s.length();
+    }
+}
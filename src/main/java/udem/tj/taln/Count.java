@@ -2,26 +2,60 @@ package udem.tj.taln;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Serial;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Count class is responsible for processing textual data, tracking word occurrences, and
  * analyzing their frequency. It provides methods to manage and reset state, process lines
  * from files incrementally, and display frequency counts in a sorted manner.
+ * <p>
+ * The lines are split by a {@link PreTokenizer} of {@link Utils.SplitConfig#counting()}. A UTF-8 file of the file
+ * system is read by a {@link CorpusScanner}, and the words reach the counter as slices of reused buffers, with no
+ * {@code String} per line or per word. With a parallelism above 1, the lines to process are
+ * split into one byte range per worker, and every range is counted on its own {@link WordCounter}; the counters are
+ * merged in file order, so the counts and even the first-occurrence order of the words are the ones of the
+ * sequential reading. Classpath resources inside an archive, injected readers and other charsets are read line by
+ * line with a {@link BufferedReader}.
  */
 public class Count {
-    private final HashSet<String> types = new HashSet<>();
-    private final HashMap<String, AtomicInteger> counts = new HashMap<>();
-    private final AtomicInteger wordCount = new AtomicInteger(0);
+    private static final int MIN_LINES_PER_TASK = 256; // below, a range is not worth a task
+
+    private final WordCounter counter = new WordCounter(1 << 16);
+    private final PreTokenizer preTokenizer = new PreTokenizer(Utils.SplitConfig.counting());
+    private final PreTokenizer.TokenSink sink = countInto(counter);
+    private HashMap<String, AtomicInteger> counts; // copy handed out by getCounts, null once stale
+    private final int parallelism;
 
     // track processed lines and buffered reader
     // buffered reader because of the large file size
     private BufferedReader bufferedReader = null;
     private int processedLines = 0;
 
+    // mapped mode: the scanner of the file and the offset of the first unprocessed line
+    private CorpusScanner scanner = null;
+    private int processedBytes = 0;
+
+    /**
+     * Creates a sequential counter.
+     */
+    public Count() {
+        this(1);
+    }
+
+    /**
+     * @param parallelism the number of worker threads counting a file (1 for the calling thread only)
+     */
+    public Count(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
     /**
      * Executes the processing of a specified number of lines from a given file and returns the
      * number of unique types encountered during the processing. This method tracks and processes
@@ -37,7 +71,7 @@ public class Count {
 
     private int count(int exampleNumber, String file) {
         try {
-            if (bufferedReader == null) {
+            if (bufferedReader == null && scanner == null && !openMapped(file)) {
                 bufferedReader = new BufferedReader(Utils.getReader(file));
                 processedLines = 0;
             }
@@ -47,34 +81,15 @@ public class Count {
             if (linesToProcess <= 0) {
                 // already processed enough lines
                 System.out.println("Using cached results.");
+            } else if (scanner != null) {
+                countMapped(linesToProcess);
             } else {
                 // process only the new lines
                 for (int i = 0; i < linesToProcess; i++) {
                     if (bufferedReader.ready()) {
                         String line = bufferedReader.readLine();
                         if (line != null) {
-                            for (String word : Utils.splitLine(line)) {
-                                if (word.isEmpty()) continue;
-                                if (word.length() > 1 &&
-                                        (word.endsWith(".") ||
-                                                word.endsWith("?") ||
-                                                word.endsWith("!") ||
-                                                word.endsWith(":") ||
-                                                word.endsWith(";") ||
-                                                word.endsWith(","))
-                                ) {
-                                    count(word.substring(0, word.length() - 1));
-                                    count(word.charAt(word.length() - 1) + "");
-                                    continue;
-                                }
-                                if ((word.endsWith("...") && word.length() > 3)
-                                ) {
-                                    count(word.substring(0, word.length() - 3));
-                                    count("...");
-                                    continue;
-                                }
-                                count(word);
-                            }
+                            preTokenizer.split(line, sink);
                             processedLines++;
                         } else {
                             break;
@@ -83,17 +98,110 @@ public class Count {
                         break;
                     }
                 }
+                counts = null;
             }
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
         }
-        return types.size();
+        return counter.size();
+    }
+
+    private static PreTokenizer.TokenSink countInto(WordCounter counter) {
+        return token -> {
+            counter.add(token.array(), token.offset(), token.length(), 1);
+            return true;
+        };
     }
 
-    private void init(String word) {
-        if (types.contains(word) && counts.containsKey(word)) return;
-        types.add(word);
-        counts.put(word, new AtomicInteger(0));
+    /**
+     * Maps the file for the {@link CorpusScanner}, when it can be.
+     *
+     * @return false if the file must be read by lines: classpath resource inside an archive, file too large to map or
+     * default charset other than UTF-8
+     */
+    private boolean openMapped(String file) throws IOException {
+        scanner = CorpusScanner.open(file);
+        if (scanner == null) return false;
+        processedLines = 0;
+        processedBytes = 0;
+        return true;
+    }
+
+    /**
+     * Counts the next lines of the mapped file, on the workers if there are enough lines.
+     */
+    private void countMapped(int linesToProcess) {
+        // the ranges are cut between lines
+        int tasks = Math.min(parallelism, Math.max(1, linesToProcess / MIN_LINES_PER_TASK));
+        int perTask = (linesToProcess + tasks - 1) / tasks;
+        List<int[]> ranges = new ArrayList<>(tasks);
+        int limit = scanner.size();
+        int pos = processedBytes, start = pos, lines = 0, inRange = 0;
+        while (lines < linesToProcess && pos < limit) {
+            pos = scanner.lineEnd(pos);
+            lines++;
+            if (++inRange == perTask) {
+                ranges.add(new int[]{start, pos});
+                start = pos;
+                inRange = 0;
+            }
+        }
+        if (inRange > 0) ranges.add(new int[]{start, pos});
+
+        if (ranges.size() <= 1) {
+            scanner.forEachLine(processedBytes, pos, (chars, off, len) -> preTokenizer.split(chars, off, len, sink));
+        } else {
+            List<ChunkTask> chunks = new ArrayList<>(ranges.size());
+            for (int[] r : ranges) chunks.add(new ChunkTask(scanner.fork(), preTokenizer.fork(), r[0], r[1]));
+            if (parallelism == ForkJoinPool.getCommonPoolParallelism()) {
+                mergeChunks(ForkJoinPool.commonPool(), chunks);
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    mergeChunks(pool, chunks);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        processedLines += lines;
+        processedBytes = pos;
+        counts = null;
+    }
+
+    /**
+     * Runs the chunks on a pool and merges their counts in file order, so the words keep their first-occurrence order.
+     */
+    private void mergeChunks(ForkJoinPool pool, List<ChunkTask> chunks) {
+        for (ChunkTask chunk : chunks) pool.execute(chunk);
+        for (ChunkTask chunk : chunks) counter.addAll(chunk.join());
+    }
+
+    /**
+     * Counts a byte range of whole lines.
+     */
+    private static final class ChunkTask extends RecursiveTask<WordCounter> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient CorpusScanner scanner;
+        private final transient PreTokenizer preTokenizer;
+        private final int from, to;
+
+        ChunkTask(CorpusScanner scanner, PreTokenizer preTokenizer, int from, int to) {
+            this.scanner = scanner;
+            this.preTokenizer = preTokenizer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected WordCounter compute() {
+            WordCounter local = new WordCounter(1 << 12);
+            PreTokenizer.TokenSink sink = countInto(local);
+            scanner.forEachLine(from, to, (chars, off, len) -> preTokenizer.split(chars, off, len, sink));
+            return local;
+        }
     }
 
     /**
@@ -101,9 +209,8 @@ public class Count {
      * This method performs the following actions:
      * - Closes the bufferedReader if it is not null, handling any potential IOException.
      * - Sets the bufferedReader reference to null.
-     * - Resets the processedLines counter to 0.
-     * - Clears the types and counts collections.
-     * - Resets the wordCount value to 0.
+     * - Resets the processedLines counter to 0 and releases the mapped file.
+     * - Clears the word counter.
      */
     public void reset() {
         if (bufferedReader != null) {
@@ -115,9 +222,10 @@ public class Count {
         }
         bufferedReader = null;
         processedLines = 0;
-        types.clear();
-        counts.clear();
-        wordCount.set(0);
+        scanner = null;
+        processedBytes = 0;
+        counter.clear();
+        counts = null;
     }
 
     /**
@@ -128,43 +236,42 @@ public class Count {
      * @param maxLines the maximum number of entries to be printed
      */
     public void entryToCmd(int maxLines) {
-        TreeMap<String, AtomicInteger> tree = new TreeMap<>((a, b) -> {
-            // sorting by value (=frequency)
-            int compareValue = counts.get(b).get() - counts.get(a).get();
-            return compareValue != 0 ? compareValue : a.compareTo(b);
-        });
-        tree.putAll(counts);
-
-        int i = 0;
-        for (var entry : tree.entrySet()) {
-            System.out.printf("%s - %s\n", entry.getKey(), entry.getValue().get());
-            if (++i == maxLines) break;
+        for (Map.Entry<String, Integer> entry : counter.top(maxLines > 0 ? maxLines : counter.size())) {
+            System.out.printf("%s - %s\n", entry.getKey(), entry.getValue());
         }
     }
 
-    private void count(String entry) {
-        init(entry);
-        counts.get(entry).incrementAndGet();
-        wordCount.incrementAndGet();
-    }
-
     /**
      * Retrieves the counts of words tracked by this instance.
-     * This method returns a mapping of words to their corresponding counts
-     * in the form of an AtomicInteger, allowing for thread-safe updates of word counts.
+     * The map is a copy of the word counter, built on the first call after a change and shared by the next calls;
+     * later counting does not update it.
      *
      * @return a HashMap where the keys are words (strings) and the values are their respective counts (AtomicInteger).
      */
     public HashMap<String, AtomicInteger> getCounts() {
+        if (counts == null) {
+            // filled in first-occurrence order without presizing, as the map counted into before
+            HashMap<String, AtomicInteger> copy = new HashMap<>();
+            for (Map.Entry<String, Integer> e : counter.view().entrySet())
+                copy.put(e.getKey(), new AtomicInteger(e.getValue()));
+            counts = copy;
+        }
         return counts;
     }
 
+    /**
+     * @return a read-only view of the word counts, without copy
+     */
+    public Map<String, Integer> getCountsView() {
+        return counter.view();
+    }
+
     /**
      * Retrieves the total number of words tracked by this instance.
      *
      * @return the total number of words tracked by this instance
      */
     public int getWordCount() {
-        return wordCount.get();
+        return (int) counter.total();
     }
 }
@@ -0,0 +1,84 @@
+package udem.tj.taln;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Read-only open-addressing table of precomputed word segmentations (token ids), for the most frequent words.
+ * <p>
+ * The table is filled once and never modified, so lookups take no lock and keep no bookkeeping: a probe on the
+ * (cached) {@link String#hashCode()} of the word and an {@code equals} on the slot keys. Load factor is at most 0.5.
+ */
+final class FrozenSegmentations {
+
+    static final FrozenSegmentations EMPTY = new FrozenSegmentations(List.of(), List.of());
+
+    private final String[] keys;
+    private final int[][] values;
+    private final int mask, shift;
+    private final int size;
+
+    /**
+     * @param words    the words, without duplicates
+     * @param segments the token ids of each word, not modified afterwards
+     */
+    FrozenSegmentations(List<String> words, List<int[]> segments) {
+        int cap = 2;
+        while (cap < words.size() * 2L) cap <<= 1;
+        keys = new String[cap];
+        values = new int[cap][];
+        mask = cap - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(cap);
+        for (int k = 0; k < words.size(); k++) {
+            int i = slot(words.get(k));
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = words.get(k);
+            values[i] = segments.get(k);
+        }
+        size = words.size();
+    }
+
+    /**
+     * Segments every word once.
+     */
+    static FrozenSegmentations build(List<String> words, Function<String, int[]> segmenter) {
+        return new FrozenSegmentations(words, words.stream().map(segmenter).toList());
+    }
+
+    private int slot(String word) {
+        return (word.hashCode() * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * @return the token ids of the word (not to be modified), or null if the word is not in the table
+     */
+    int[] get(String word) {
+        for (int i = slot(word); ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) return null;
+            if (k.equals(word)) return values[i];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots of the table, for a visit with {@link #keyAt(int)} and {@link #valueAt(int)}
+     */
+    int slots() {
+        return keys.length;
+    }
+
+    /**
+     * @return the word in a slot, null for an empty slot
+     */
+    String keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int[] valueAt(int slot) {
+        return values[slot];
+    }
+}
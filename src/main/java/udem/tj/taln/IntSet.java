@@ -0,0 +1,117 @@
+package udem.tj.taln;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Open-addressing hash set of non-negative {@code int} values (word ids, symbol ids...).
+ * Linear probing with backward-shift deletion, no boxing.
+ */
+public class IntSet {
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int shift;
+    private int size;
+
+    public IntSet() {
+        this(4);
+    }
+
+    /**
+     * @param expected the expected number of elements
+     */
+    public IntSet(int expected) {
+        int cap = 4;
+        while (cap < expected * 2L) cap <<= 1;
+        allocate(cap);
+    }
+
+    private void allocate(int cap) {
+        slots = new int[cap];
+        Arrays.fill(slots, EMPTY);
+        shift = 32 - Integer.numberOfTrailingZeros(cap);
+    }
+
+    private int home(int v) {
+        return (v * 0x9E3779B9) >>> shift;
+    }
+
+    private int find(int v) {
+        int mask = slots.length - 1;
+        for (int i = home(v); ; i = (i + 1) & mask) {
+            if (slots[i] == v) return i;
+            if (slots[i] == EMPTY) return -1 - i;
+        }
+    }
+
+    /**
+     * @return true if the value was not already present
+     */
+    public boolean add(int v) {
+        if (v < 0) throw new IllegalArgumentException("Negative value: " + v);
+        int i = find(v);
+        if (i >= 0) return false;
+        slots[-1 - i] = v;
+        if (++size * 2 > slots.length) rehash();
+        return true;
+    }
+
+    public boolean contains(int v) {
+        return v >= 0 && find(v) >= 0;
+    }
+
+    /**
+     * @return true if the value was present
+     */
+    public boolean remove(int v) {
+        if (v < 0) return false;
+        int i = find(v);
+        if (i < 0) return false;
+        int mask = slots.length - 1;
+        int hole = i;
+        for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+            if (((j - home(slots[j])) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a fresh array holding the elements, in table order
+     */
+    public int[] toArray() {
+        int[] out = new int[size];
+        int n = 0;
+        for (int v : slots) if (v != EMPTY) out[n++] = v;
+        return out;
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int v : slots) if (v != EMPTY) action.accept(v);
+    }
+
+    private void rehash() {
+        int[] old = slots;
+        allocate(old.length << 1);
+        int mask = slots.length - 1;
+        for (int v : old) {
+            if (v == EMPTY) continue;
+            int i = home(v);
+            while (slots[i] != EMPTY) i = (i + 1) & mask;
+            slots[i] = v;
+        }
+    }
+}
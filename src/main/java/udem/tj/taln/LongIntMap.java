@@ -0,0 +1,174 @@
+package udem.tj.taln;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive {@code long} keys to {@code int} values.
+ * <p>
+ * Used for the BPE pair statistics, where every key is a packed pair of symbol ids
+ * (see {@link SymbolTable#pairKey(int, int)}). Linear probing with backward-shift deletion,
+ * so there are no tombstones and no boxing on any operation.
+ * The key {@code -1} is reserved as the empty-slot marker and cannot be stored.
+ */
+public class LongIntMap {
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private int[] vals;
+    private int shift;
+    private int size;
+
+    /**
+     * Functional interface used to visit the entries of the map without boxing.
+     */
+    public interface EntryVisitor {
+        void accept(long key, int value);
+    }
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a map sized so that {@code expected} entries fit without rehashing.
+     *
+     * @param expected the expected number of entries
+     */
+    public LongIntMap(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    private static int capacityFor(int expected) {
+        int cap = 8;
+        while (cap < expected * 2L) cap <<= 1; // load factor <= 0.5
+        return cap;
+    }
+
+    private void allocate(int cap) {
+        keys = new long[cap];
+        Arrays.fill(keys, EMPTY);
+        vals = new int[cap];
+        shift = 64 - Integer.numberOfTrailingZeros(cap);
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) return i;
+            if (k == EMPTY) return -1 - i; // insertion point
+        }
+    }
+
+    /**
+     * @param key the key to look up
+     * @param def the value returned when the key is absent
+     * @return the value mapped to {@code key}, or {@code def}
+     */
+    public int get(long key, int def) {
+        int i = find(key);
+        return i >= 0 ? vals[i] : def;
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Associates {@code value} with {@code key}, replacing any previous value.
+     */
+    public void put(long key, int value) {
+        int i = find(key);
+        if (i >= 0) {
+            vals[i] = value;
+            return;
+        }
+        insertAt(-1 - i, key, value);
+    }
+
+    /**
+     * Adds {@code delta} to the value of {@code key} (absent keys count as 0) in a single probe.
+     *
+     * @return the new value
+     */
+    public int addTo(long key, int delta) {
+        int i = find(key);
+        if (i >= 0) return vals[i] += delta;
+        insertAt(-1 - i, key, delta);
+        return delta;
+    }
+
+    private void insertAt(int i, long key, int value) {
+        if (key == EMPTY) throw new IllegalArgumentException("Reserved key: " + key);
+        keys[i] = key;
+        vals[i] = value;
+        if (++size * 2 > keys.length) rehash();
+    }
+
+    /**
+     * Removes {@code key} from the map.
+     *
+     * @return the removed value, or {@code def} if the key was absent
+     */
+    public int remove(long key, int def) {
+        int i = find(key);
+        if (i < 0) return def;
+        int old = vals[i];
+        // backward-shift deletion: pull later entries of the cluster into the hole
+        int mask = keys.length - 1;
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                vals[hole] = vals[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Visits every entry of the map, in table order.
+     * The map must not be modified during the visit.
+     */
+    public void forEach(EntryVisitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) visitor.accept(keys[i], vals[i]);
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldVals = vals;
+        allocate(oldKeys.length << 1);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long k = oldKeys[j];
+            if (k == EMPTY) continue;
+            int i = slot(k);
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = k;
+            vals[i] = oldVals[j];
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package udem.tj.taln;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
@@ -22,7 +23,7 @@ public class Main {
 
         testBpe(count, file);
         // test for 100,000 lines
-        count = new Count();
+        count = new Count(Runtime.getRuntime().availableProcessors());
         block(count, 100000, 1000, file, "Types for 100,000 lines");
 
         try {
@@ -72,8 +73,8 @@ public class Main {
         }
         count.entryToCmd(10);
         List<List<String>> rows = new ArrayList<>();
-        for (var count_ : count.getCounts().entrySet()) {
-            rows.add(List.of(count_.getKey(), count_.getValue().get() + ""));
+        for (var count_ : count.getCountsView().entrySet()) {
+            rows.add(List.of(count_.getKey(), count_.getValue() + ""));
         }
         Utils.writeCsv(outputFile.getPath(), null, rows);
     }
@@ -121,28 +122,21 @@ public class Main {
             long time_bpe_last = System.nanoTime();
             System.out.println("BPE time for " + sentences.size() + " sentences : " + (time_bpe_last - time_bpe_first) / 1000000 + " ms");
 
-            sentences = getSentences(file, 1001, 1000);
-            System.out.println("Sentences fetched!");
             System.out.println("Testing fast tokenization method");
-            System.out.println("Tokenizing sentences...");
+            System.out.println("Streaming sentences through the tokenization pipeline...");
 
+            final int PIPELINE_QUEUE = 8, PIPELINE_BATCH = 64;
             time_bpe_first = System.nanoTime();
-            for (var sentence : sentences) {
-                List<String> result = new ArrayList<>();
-                for (var word : sentence) {
-                    result.addAll(bpe.tokenizeWordFast(word, encoding.merges(), encoding.charset(), true));
-                }
-                bpeResults.add(result);
-            }
-            time_bpe_last = System.nanoTime();
-            System.out.println("fast BPE time for " + sentences.size() + " sentences : " + (time_bpe_last - time_bpe_first) / 1000000 + " ms");
-
-            System.out.println("Writing results to file...");
-
+            BpeModel model = BpeModel.of(encoding, true);
+            System.out.println("BPE model compiled in " + (System.nanoTime() - time_bpe_first) / 1000000 + " ms: " + model);
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(output, false))) {
                 for (var sentence : bpeResults) {
                     writer.write(String.join(" ", sentence) + "\n");
                 }
+                var stages = new TokenPipeline(model, PIPELINE_QUEUE, PIPELINE_BATCH).run(file, 1001, 1000, writer);
+                time_bpe_last = System.nanoTime();
+                System.out.println("fast BPE time for " + stages.get(2).items() + " sentences : " + (time_bpe_last - time_bpe_first) / 1000000 + " ms");
+                for (var stage : stages) System.out.println("  " + stage);
             }
             System.out.println("Done!");
 
@@ -160,56 +154,52 @@ public class Main {
 
     /**
      * AI Assisted (correction of errors).
-     * Processes the file by reading lines, applying a splitter function to extract types,
-     * and generating statistics on the number of unique types encountered over a set number
-     * of lines. Outputs the results in a CSV file
+     * Processes the file once, splitting every line with each variant of the pre-tokenizer, and generates statistics
+     * on the number of unique types encountered over a set number of lines for each of them. Outputs the results in
+     * a CSV file per variant, a CSV file of all the variants side by side and a graph per variant.
      *
-     * @param label    the name of the variant being processed. Used for naming the output files.
      * @param file     the path to the file containing the text data to be tokenized.
      * @param maxLines the maximum number of lines to be processed.
      * @param step     the number of lines to be processed between each output.
-     * @param splitter the function to be applied to each line to extract types.
+     * @param variants the name of each variant (used for naming the output files) and its configuration.
      */
-    private static void blockVariant(String label, String file, int maxLines, int step, Function<String, List<String>> splitter) {
-        System.out.println("Counting variant = " + label);
+    private static void blockVariants(String file, int maxLines, int step, Map<String, Utils.SplitConfig> variants) {
+        System.out.println("Counting variants = " + variants.keySet());
         long first = System.nanoTime();
-        Map<Integer, Integer> curve = new LinkedHashMap<>();
-        HashSet<String> types = new HashSet<>();
-
-        try (BufferedReader br = new BufferedReader(Utils.getReader(file))) {
-
-            String line;
-            int lineNo = 0;
-            int nextMark = step;
-            curve.put(0, 0);
-            while ((line = br.readLine()) != null && lineNo < maxLines) {
-                lineNo++;
-                types.addAll(splitter.apply(line));
-                if (lineNo >= nextMark) {
-                    curve.put(lineNo, types.size());
-                    nextMark += step;
-                }
-            }
-            if (!curve.containsKey(lineNo)) curve.put(lineNo, types.size());
-
+        List<VariantCounter.Result> results;
+        try {
+            results = new VariantCounter(variants, Runtime.getRuntime().availableProcessors()).count(file, maxLines, step);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
-        // CSV
-        List<List<String>> rows = new ArrayList<>();
-        rows.add(List.of("examples", "types"));
-        for (var e : curve.entrySet()) rows.add(List.of(String.valueOf(e.getKey()), String.valueOf(e.getValue())));
-        Utils.writeCsv("output/count/types-tokens" + label + ".csv", null, rows);
-
-        // graphs
-        try {
-            Graph.graph(curve, label, false);
-        } catch (IOException e) {
-            System.err.println("Graph failed for " + label + ": " + e.getMessage());
+        List<List<String>> table = new ArrayList<>();
+        List<String> header = new ArrayList<>(List.of("examples"));
+        for (VariantCounter.Result r : results) header.add(r.label());
+        table.add(header);
+        for (Integer examples : results.getFirst().curve().keySet()) {
+            List<String> row = new ArrayList<>(List.of(String.valueOf(examples)));
+            for (VariantCounter.Result r : results) row.add(String.valueOf(r.curve().get(examples)));
+            table.add(row);
+        }
+        Utils.writeCsv("output/count/types-tokens_variants.csv", null, table);
+
+        for (VariantCounter.Result r : results) {
+            // CSV
+            List<List<String>> rows = new ArrayList<>();
+            rows.add(List.of("examples", "types"));
+            for (var e : r.curve().entrySet()) rows.add(List.of(String.valueOf(e.getKey()), String.valueOf(e.getValue())));
+            Utils.writeCsv("output/count/types-tokens" + r.label() + ".csv", null, rows);
+
+            // graphs
+            try {
+                Graph.graph(r.curve(), r.label(), false);
+            } catch (IOException e) {
+                System.err.println("Graph failed for " + r.label() + ": " + e.getMessage());
+            }
         }
         long second = System.nanoTime();
-        System.out.println("Variant " + label + " done in " + ((second - first) / 1000000) + " ms");
+        System.out.println("Variants done in " + ((second - first) / 1000000) + " ms");
     }
 
     /**
@@ -225,222 +215,26 @@ public class Main {
      * @throws IOException if an I/O error occurs while reading the file.
      */
     private static List<List<String>> getSentences(String file, int firstLine, int numberSentences) throws IOException {
-        // large buffer
-        try (BufferedReader br = new BufferedReader(Utils.getReader(file), 1 << 20)) {
+        List<List<String>> sentences = new ArrayList<>(numberSentences);
+        SentenceSplitter splitter = new SentenceSplitter();
+        int[] skipped = {0};
+        CorpusScanner.readLines(file, (chars, offset, length) -> {
             // skip first lines (ex: those used for the encoding)
-            for (int i = 0; i < firstLine; i++) {
-                if (br.readLine() == null) break;
-            }
-            List<List<String>> sentences = new ArrayList<>(numberSentences);
-            List<String> cur = new ArrayList<>(32);
-            StringBuilder tok = new StringBuilder(32);
-            String line;
-            outer:
-            // outer for breaking loops even while in nested loops
-            while (sentences.size() < numberSentences && (line = br.readLine()) != null) {
-                if (line.isEmpty()) continue;
-
-                final int n = line.length();
-                for (int i = 0; i < n; i++) {
-                    // chars processing
-                    char c = Character.toLowerCase(line.charAt(i));
-                    if (c >= '0' && c <= '9') {
-                        if (!tok.isEmpty()) {
-                            cur.add(tok.toString());
-                            tok.setLength(0);
-                        }
-                        cur.add("@");
-                        continue;
-                    }
-                    if (c == '"' || c == '(' || c == ')' || c == '{' || c == '}' || c == '[' || c == ']' || c == '\t')
-                        continue;
-                    if (c == ' ') {
-                        if (!tok.isEmpty()) {
-                            cur.add(tok.toString());
-                            tok.setLength(0);
-                        }
-                        continue;
-                    }
-                    if (c == '.' || c == '?' || c == '!' || c == ',' || c == ':' || c == ';') {
-                        if (!tok.isEmpty()) {
-                            cur.add(tok.toString());
-                            tok.setLength(0);
-                        }
-                        if (c == '.' && i + 2 < n && line.charAt(i + 1) == '.' && line.charAt(i + 2) == '.') {
-                            cur.add("...");
-                            i += 2;
-                        } else cur.add(String.valueOf(c));
-                        if (c == '.' || c == '?' || c == '!') {
-                            sentences.add(cur);
-                            cur = new ArrayList<>(32);
-                            if (sentences.size() == numberSentences) break outer;
-                        }
-                        continue;
-                    }
-                    tok.append(c);
-                }
-                if (!tok.isEmpty()) {
-                    cur.add(tok.toString());
-                    tok.setLength(0);
-                }
+            if (skipped[0] < firstLine) {
+                skipped[0]++;
+                return true;
             }
-            // adding last useful unfinished sentence
-            if (!cur.isEmpty() && sentences.size() < numberSentences) sentences.add(cur);
-            return sentences;
-        }
-    }
-
-    /**
-     * AI assisted (suggested to improve code readability).
-     * <p>
-     * Represents statistical data related to tokenization processes.
-     * This class stores various aggregated metrics, including average subwords per word,
-     * statistics for token splits across different segment counts, and timing information.
-     */
-    private static class TokStats {
-        double avgSubwordsPerWord;
-        Map<Integer, Double> pctByNSegments = new LinkedHashMap<>();
-        Map<Integer, Double> decileAvg = new LinkedHashMap<>();
-        long tokenizeMillis;
-        int sampleWords;
-    }
-
-    /**
-     * AI assisted (correction of errors and improvements).
-     * <p>
-     * Computes tokenization statistics for a given set of word counts using a specified tokenizer.
-     * The method calculates the average subwords per word, tokenization timing, distribution
-     * of tokens by segment size, and decile averages for tokenization results. It returns
-     * a TokStats object containing these aggregated statistics.
-     *
-     * @param counts       a HashMap containing word counts, where keys are words and values are their frequencies as AtomicInteger.
-     * @param tokenizer    a Function that takes a string and returns a list of tokens, used to tokenize the words in the input.
-     * @param timingSample an integer specifying the number of samples to tokenize for timing purposes.
-     * @return a TokStats object containing computed statistics, including average subwords per word, tokenization timing, and distribution metrics.
-     */
-    private static TokStats computeTokenizationStats(HashMap<String, AtomicInteger> counts,
-                                                     Function<String, List<String>> tokenizer,
-                                                     int timingSample) {
-        List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<>(counts.entrySet());
-        entries.sort((a, b) -> Integer.compare(b.getValue().get(), a.getValue().get()));
-
-        long t0 = System.nanoTime();
-        int n = Math.min(timingSample, entries.size());
-        for (int i = 0; i < n; i++) tokenizer.apply(entries.get(i).getKey());
-        long ms = (System.nanoTime() - t0) / 1000000;
-
-        long totalSeg = 0, totalWords = 0;
-        Map<Integer, Integer> bucket = new HashMap<>();
-        for (var e : entries) {
-            int segs = tokenizer.apply(e.getKey()).size();
-            totalSeg += segs;
-            totalWords++;
-            bucket.merge(segs, 1, Integer::sum);
-        }
-
-        TokStats s = new TokStats();
-        s.sampleWords = n;
-        s.tokenizeMillis = ms;
-        s.avgSubwordsPerWord = totalWords == 0 ? 0.0 : (double) totalSeg / totalWords;
-
-        int N = entries.size();
-        SortedSet<Integer> keys = new TreeSet<>(bucket.keySet());
-        for (int k : keys) s.pctByNSegments.put(k, 100.0 * bucket.get(k) / Math.max(1, N));
-
-        for (int d = 1; d <= 10; d++) {
-            int start = (int) Math.floor((d - 1) / 10.0 * N);
-            int end = (int) Math.floor(d / 10.0 * N);
-            if (end <= start) {
-                s.decileAvg.put(d, Double.NaN);
-                continue;
-            }
-            double sum = 0;
-            int cnt = 0;
-            for (int i = start; i < end; i++) {
-                sum += tokenizer.apply(entries.get(i).getKey()).size();
-                cnt++;
-            }
-            s.decileAvg.put(d, sum / Math.max(1, cnt));
-        }
-        return s;
-    }
-
-    /**
-     * AI assisted (correction of errors and improvements).
-     * <p>
-     * Tokenizes a given word based on a set of merges and a character set,
-     * and optionally adds a boundary marker to the word. The method first
-     * breaks the word into individual
-     *
-     * @param word     the word to be tokenized.
-     * @param merges   the list of merges to be applied to the word.
-     * @param charset  the set of characters that can be used in the word.
-     * @param boundary whether to add a boundary marker to the word.
-     */
-    private static List<String> tokenizeWithMergesFile(String word, List<String> merges, Set<String> charset, boolean boundary) {
-        final String UNK = "<UNK>";
-        String s = boundary ? ("_" + word.toLowerCase()) : word.toLowerCase();
-        List<String> toks = new ArrayList<>(s.length());
-        for (int i = 0; i < s.length(); i++) {
-            String c = String.valueOf(s.charAt(i));
-            toks.add(charset.contains(c) ? c : UNK);
-        }
-        for (String m : merges) {
-            String line = m.strip();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-            String[] sp = line.split("\\s+");
-            if (sp.length != 2) continue;
-            String left = sp[0], right = sp[1];
-            int i = 0;
-            while (i < toks.size() - 1) {
-                if (toks.get(i).equals(left) && toks.get(i + 1).equals(right)) {
-                    toks.set(i, left + right);
-                    toks.remove(i + 1);
-                } else i++;
-            }
-        }
-        return toks;
-    }
-
-    /**
-     * Reads a file containing merge rules and returns a list of strings where each string is a line from the file.
-     * If the specified file does not exist or an error occurs while reading, an empty list is returned.
-     *
-     * @param path the path to the file containing the merge rules.
-     * @return a list of strings representing the lines of the file, or an empty list if the file does not exist or cannot be read.
-     */
-    private static List<String> readMergesFile(String path) {
-        List<String> out = new ArrayList<>();
-        File f = new File(path);
-        if (!f.isFile()) return out;
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = br.readLine()) != null) out.add(line);
-        } catch (IOException e) {
-            System.err.println("Cannot read merges file " + path + ": " + e.getMessage());
-        }
-        return out;
-    }
-
-    /**
-     * Extracts a set of unique characters present in the provided list of merge rules.
-     * Each merge rule is processed to identify the characters used, and comments or invalid lines are ignored.
-     *
-     * @param merges a list of strings representing merge rules. Each rule should contain two tokens separated by whitespace.
-     *               Lines starting with a '#' or empty lines are ignored.
-     * @return a set of unique characters found in the valid merge rules.
-     */
-    private static Set<String> charsetFromMerges(List<String> merges) {
-        HashSet<String> cs = new HashSet<>();
-        for (String m : merges) {
-            String line = m.strip();
-            if (line.isEmpty() || line.startsWith("#")) continue;
-            String[] sp = line.split("\\s+");
-            if (sp.length != 2) continue;
-            for (char c : sp[0].toCharArray()) cs.add(String.valueOf(c));
-            for (char c : sp[1].toCharArray()) cs.add(String.valueOf(c));
-        }
-        return cs;
+            if (sentences.size() >= numberSentences) return false;
+            splitter.accept(chars, offset, length, s -> {
+                sentences.add(s);
+                return sentences.size() < numberSentences;
+            });
+            return sentences.size() < numberSentences;
+        });
+        // adding last useful unfinished sentence
+        List<String> last = splitter.flush();
+        if (last != null && sentences.size() < numberSentences) sentences.add(last);
+        return sentences;
     }
 
     /**
@@ -456,15 +250,33 @@ public class Main {
      */
     private static void runAddonsTests(String file, Count count) throws IOException {
 
-        // processing variants
+        // processing variants, in a single pass
+        Map<String, Utils.SplitConfig> variants = new LinkedHashMap<>();
+        variants.put("default", new Utils.SplitConfig());
         Utils.SplitConfig keepHyphen = new Utils.SplitConfig();
         keepHyphen.keepHyphen = true;
+        variants.put("keepHyphen", keepHyphen);
         Utils.SplitConfig keepApostropheAndSplitClitics = new Utils.SplitConfig();
         keepApostropheAndSplitClitics.keepApostrophe = true;
         keepApostropheAndSplitClitics.splitClitics = true;
-
-        blockVariant("keepHyphen", file, 1000, 10, line -> Utils.splitLine(line, keepHyphen));
-        blockVariant("apostrophe_split_clitics", file, 1000, 10, line -> Utils.splitLine(line, keepApostropheAndSplitClitics));
+        variants.put("apostrophe_split_clitics", keepApostropheAndSplitClitics);
+        Utils.SplitConfig splitClitics = new Utils.SplitConfig();
+        splitClitics.splitClitics = true;
+        splitClitics.strictFlags = true;
+        variants.put("split_clitics_strict", splitClitics);
+        Utils.SplitConfig noApostrophe = new Utils.SplitConfig();
+        noApostrophe.keepApostrophe = false;
+        noApostrophe.strictFlags = true;
+        variants.put("no_apostrophe_strict", noApostrophe);
+        Utils.SplitConfig keepDigits = new Utils.SplitConfig();
+        keepDigits.digitsToAt = false;
+        variants.put("keep_digits", keepDigits);
+        Utils.SplitConfig caseSensitive = new Utils.SplitConfig();
+        caseSensitive.lowercase = false;
+        variants.put("case_sensitive", caseSensitive);
+        variants.put("counting", Utils.SplitConfig.counting());
+        variants.put("sentences", Utils.SplitConfig.sentences());
+        blockVariants(file, 1000, 10, variants);
 
         HashMap<String, AtomicInteger> counts = count.getCounts();
 
@@ -483,58 +295,97 @@ public class Main {
                 .forEach(e -> countsTop.put(e.getKey(), new AtomicInteger(e.getValue().get())));
 
         List<List<String>> trainProfile = new ArrayList<>();
-        trainProfile.add(List.of("label", "vocabTarget", "minPairFreq", "boundary", "train_ms", "merges"));
-
-        for (int v : V)
-            for (int m : MIN)
-                for (boolean bound : BOUND) {
+        // a sweep row has the training time of the sweep, a prefix row the time to derive its merges from the sweep
+        // ("-" in the other column)
+        trainProfile.add(List.of("label", "vocabTarget", "minPairFreq", "boundary", "sweep_train_ms", "derive_ms",
+                "merges"));
+
+        // one training run per boundary setting, every (V, minPairFreq) merge list is a prefix of it
+        int maxV = Arrays.stream(V).max().orElseThrow();
+        int minM = Arrays.stream(MIN).min().orElseThrow();
+        BpeTrainer statsTrainer = null;
+        for (boolean bound : BOUND) {
+            BpeTrainer sweep = null;
+            for (int v : V)
+                for (int m : MIN) {
                     String label = "V" + v + "_M" + m + "_B" + (bound ? "1" : "0");
                     String spec_file = "output/bpe/merges" + label + ".txt";
                     if (new File(spec_file).exists()) {
                         System.out.println("Skipping file, already ran in previous run : " + spec_file);
                         continue;
                     }
+                    if (sweep == null) {
+                        long sweep_first = System.nanoTime();
+                        sweep = bpe.encodeSweep(countsTop, maxV, minM, 20000, bound,
+                                Path.of("output/bpe/checkpoint_B" + (bound ? "1" : "0") + ".txt"));
+                        long sweep_last = System.nanoTime();
+                        trainProfile.add(List.of(
+                                "SWEEP_B" + (bound ? "1" : "0"), String.valueOf(maxV), String.valueOf(minM), String.valueOf(bound),
+                                ((sweep_last - sweep_first) / 1000000) + "", "-",
+                                String.valueOf(sweep.merges().size())
+                        ));
+                    }
                     long enc_first = System.nanoTime();
-                    BPE.Encoding enc = bpe.encodeParam(countsTop, v, m, 20000, bound);
+                    List<String> merges = sweep.mergesFor(v, m, 20000);
                     long enc_last = System.nanoTime();
                     // save merges
                     List<List<String>> mergeRows = new ArrayList<>();
-                    for (String line : enc.merges()) mergeRows.add(List.of(line));
+                    for (String line : merges) mergeRows.add(List.of(line));
                     Utils.writeCsv(spec_file, null, mergeRows);
 
-                    // profil line
+                    // profil line (time to derive the prefix from the sweep)
                     trainProfile.add(List.of(
                             label, String.valueOf(v), String.valueOf(m), String.valueOf(bound),
-                            ((enc_last - enc_first) / 1000000) + "",
-                            String.valueOf(enc.merges().size())
+                            "-", ((enc_last - enc_first) / 1000000) + "",
+                            String.valueOf(merges.size())
                     ));
                 }
+            if (bound) statsTrainer = sweep;
+        }
         Utils.writeCsv("output/bpe/train_profile.csv", null, trainProfile);
         System.out.println("Train profile written to csv.");
 
         // tokenization stats
-        BPE.Encoding enc = bpe.encodeParam(countsTop, 10000, 5, 20000, true);
+        BPE.Encoding enc = statsTrainer != null
+                ? statsTrainer.encodingFor(10000, 5, 20000)
+                : bpe.encodeParamFast(countsTop, 10000, 5, 20000, true);
+
+        // the most frequent words are segmented once, when the model is built
+        final int FROZEN_TOP = 5000;
+        BpeModel model = BpeModel.of(enc, true, counts, FROZEN_TOP);
+        try {
+            model.save(Path.of("output/bpe/model_V10000_M5_B1.bin"));
+        } catch (IOException e) {
+            System.err.println("Cannot save the model: " + e.getMessage());
+        }
+        List<String> mismatches = new BpeAutomaton(model).verify(counts.keySet());
+        System.out.println("Automaton tokenizer checked on " + counts.size() + " words, mismatches: " + mismatches.size()
+                + (mismatches.isEmpty() ? "" : " " + mismatches.subList(0, Math.min(10, mismatches.size()))));
 
         System.out.println("Tokenizing for stats");
-        TokStats stats = computeTokenizationStats(
-                counts,
-                w -> bpe.tokenizeWordFast(w, enc.merges(), enc.charset(), true),
-                50000
-        );
+        TokenizationStats stats = TokenizationStats.compute(counts, model::countTokens);
+
+        System.out.println("Model cache: " + model.cacheStats());
 
-        System.out.println("Overview");
+        System.out.println("Overview (timings of one parallel pass over all " + stats.words() + " words)");
         // overview
         List<List<String>> ov = new ArrayList<>();
         ov.add(List.of("metric", "value"));
-        ov.add(List.of("avg_subwords_per_word", String.format(java.util.Locale.US, "%.4f", stats.avgSubwordsPerWord)));
-        ov.add(List.of("tokenize_ms_on" + stats.sampleWords + "_words", String.valueOf(stats.tokenizeMillis)));
+        ov.add(List.of("avg_subwords_per_word", String.format(java.util.Locale.US, "%.4f", stats.avgTokensPerWord())));
+        ov.add(List.of("avg_subwords_per_occurrence", String.format(Locale.US, "%.4f", stats.weightedAvgTokensPerWord())));
+        ov.add(List.of("parallel_pass_ms_on_all_" + stats.words() + "_words", String.valueOf(stats.wallMillis())));
+        ov.add(List.of("parallel_pass_words_per_second", String.format(Locale.US, "%.0f", stats.wordsPerSecond())));
+        ov.add(List.of("latency_ns_p50", String.valueOf(stats.latencyPercentile(0.5))));
+        ov.add(List.of("latency_ns_p90", String.valueOf(stats.latencyPercentile(0.9))));
+        ov.add(List.of("latency_ns_p99", String.valueOf(stats.latencyPercentile(0.99))));
+        ov.add(List.of("latency_ns_p99.9", String.valueOf(stats.latencyPercentile(0.999))));
         Utils.writeCsv("output/bpe/tokenization_stats_overview.csv", null, ov);
 
         System.out.println("Percentages for segments");
         // percentages for segments
         List<List<String>> pct = new ArrayList<>();
         pct.add(List.of("n_segments", "pct_words"));
-        for (var e : stats.pctByNSegments.entrySet())
+        for (var e : stats.pctByNSegments().entrySet())
             pct.add(List.of(String.valueOf(e.getKey()), String.format(Locale.US, "%.4f", e.getValue())));
         Utils.writeCsv("output/addons/pct_by_n_segments.csv", null, pct);
 
@@ -542,7 +393,7 @@ public class Main {
         // deciles
         List<List<String>> dec = new ArrayList<>();
         dec.add(List.of("decile", "avg_subwords"));
-        for (var e : stats.decileAvg.entrySet())
+        for (var e : stats.decileAvg().entrySet())
             dec.add(List.of(String.valueOf(e.getKey()), String.format(Locale.US, "%.4f", e.getValue())));
         Utils.writeCsv("output/addons/avg_subwords_by_decile.csv", null, dec);
 
@@ -550,31 +401,44 @@ public class Main {
         // tokenized sentences for inspection
         List<List<String>> sentences = getSentences(file, 1001, 1000);
         List<List<String>> bpeSent = new ArrayList<>();
-        for (var s : sentences) {
-            List<String> toks = new ArrayList<>();
-            for (String w : s) toks.addAll(bpe.tokenizeWord(w, enc.merges(), enc.charset(), true));
-            bpeSent.add(List.of(String.join(" ", toks)));
-        }
+        for (List<String> toks : bpe.tokenizeBatch(sentences, model)) bpeSent.add(List.of(String.join(" ", toks)));
         Utils.writeCsv("output/bpe/tokenized_sentences.csv", null, bpeSent);
 
+        // round trip through token ids (lossy only for unknown characters)
+        int[] ids = new int[model.maxTokens(sentences)];
+        int[] offsets = new int[sentences.size() + 1];
+        model.encode(sentences, ids, offsets);
+        BpeDecoder decoder = new BpeDecoder(model);
+        int lossless = 0;
+        for (int k = 0; k < sentences.size(); k++) {
+            if (decoder.decode(ids, offsets[k], offsets[k + 1]).equals(String.join(" ", sentences.get(k)).toLowerCase()))
+                lossless++;
+        }
+        System.out.println("Round trip: " + lossless + "/" + sentences.size() + " sentences decoded back to their text");
+
         System.out.println("External comparison");
         // external comparison
-        String hfPath = "hf_merges.txt";
-        List<String> hfM = readMergesFile(hfPath);
-        if (!hfM.isEmpty()) {
-            Set<String> hfCharset = charsetFromMerges(hfM);
+        String hfPath = "hf_merges.txt", hfVocabPath = "hf_vocab.json";
+        if (new File(hfPath).isFile()) {
+            File hfVocab = new File(hfVocabPath);
+            BpeModel hf = BpeModel.fromMergesFile(Path.of(hfPath), hfVocab.isFile() ? hfVocab.toPath() : null, true);
+            System.out.println("HF model compiled: " + hf);
 
             var topWords = counts.entrySet().stream()
                     .sorted((a, b) -> Integer.compare(b.getValue().get(), a.getValue().get()))
                     .limit(2000).map(java.util.Map.Entry::getKey).toList();
 
+            // both lengths of every word in one parallel pass
+            int[] lenBpe = new int[topWords.size()], lenHf = new int[topWords.size()];
+            IntStream.range(0, topWords.size()).parallel().forEach(i -> {
+                lenBpe[i] = model.countTokens(topWords.get(i));
+                lenHf[i] = hf.countTokens(topWords.get(i));
+            });
+
             List<List<String>> cmp = new ArrayList<>();
             cmp.add(List.of("word", "len_bpe", "len_hf"));
-            for (String w : topWords) {
-                int lb = bpe.tokenizeWord(w, enc.merges(), enc.charset(), true).size();
-                int lh = tokenizeWithMergesFile(w, hfM, hfCharset, true).size();
-                cmp.add(List.of(w, String.valueOf(lb), String.valueOf(lh)));
-            }
+            for (int i = 0; i < topWords.size(); i++)
+                cmp.add(List.of(topWords.get(i), String.valueOf(lenBpe[i]), String.valueOf(lenHf[i])));
             Utils.writeCsv("output/addons/compare_hf_len.csv", null, cmp);
         } else {
             System.out.println("HF comparison skipped (no " + hfPath + ").");
@@ -0,0 +1,214 @@
+package udem.tj.taln;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Indexed binary max-heap of BPE pairs (packed {@code long} keys) ordered by count.
+ * <p>
+ * Unlike a {@link java.util.PriorityQueue} with lazy deletion, every live pair has exactly one entry and
+ * its position is tracked, so a count change moves the entry in place (increase/decrease key) and the memory
+ * stays bounded by the number of live pairs. The heap also holds the counts themselves, so it doubles as
+ * the pair statistics map. Pairs whose count drops to zero are removed.
+ * <p>
+ * Entries of equal count are ordered by a caller-supplied tie-break (the pair string for the BPE trainer).
+ */
+public class PairHeap {
+
+    /**
+     * Tie-break between two pairs of equal count; negative when {@code a} must come first.
+     */
+    public interface TieBreak {
+        int compare(long a, long b);
+    }
+
+    /**
+     * Snapshot of the heap counters.
+     *
+     * @param size      the current number of live pairs
+     * @param peakSize  the largest number of live pairs seen
+     * @param updates   the number of in-place count changes (increase or decrease key)
+     * @param pops      the number of times the best pair was selected
+     * @param stalePops the number of selected pairs that had no occurrence left
+     */
+    public record Stats(int size, int peakSize, long updates, long pops, long stalePops) {
+        public double stalePopRate() {
+            return pops == 0 ? 0.0 : (double) stalePops / pops;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "size=%d, peak=%d, updates=%d, pops=%d, stalePopRate=%.4f",
+                    size, peakSize, updates, pops, stalePopRate());
+        }
+    }
+
+    private final TieBreak tieBreak;
+    private final LongIntMap positions;
+    private long[] pairs;
+    private int[] counts;
+    private int size;
+
+    private int peakSize;
+    private long updates, pops, stalePops;
+
+    /**
+     * Builds a heap from initial pair counts (pairs with a count {@code <= 0} are ignored), in linear time.
+     *
+     * @param initial  the initial counts
+     * @param tieBreak the order of pairs with equal count
+     */
+    public PairHeap(LongIntMap initial, TieBreak tieBreak) {
+        this.tieBreak = tieBreak;
+        int cap = Math.max(16, initial.size());
+        pairs = new long[cap];
+        counts = new int[cap];
+        positions = new LongIntMap(cap);
+        initial.forEach((p, c) -> {
+            if (c <= 0) return;
+            pairs[size] = p;
+            counts[size] = c;
+            positions.put(p, size++);
+        });
+        for (int i = (size >>> 1) - 1; i >= 0; i--) siftDown(i);
+        peakSize = size;
+    }
+
+    /**
+     * @return the current count of the pair, 0 if it is not in the heap
+     */
+    public int count(long pair) {
+        int i = positions.get(pair, -1);
+        return i < 0 ? 0 : counts[i];
+    }
+
+    /**
+     * Adds {@code delta} to the count of a pair, inserting, moving or removing its entry as needed.
+     *
+     * @return the new count of the pair
+     */
+    public int add(long pair, int delta) {
+        if (delta == 0) return count(pair);
+        int i = positions.get(pair, -1);
+        int nv = (i < 0 ? 0 : counts[i]) + delta;
+        if (nv <= 0) {
+            if (i >= 0) removeAt(i);
+            return 0;
+        }
+        if (i < 0) {
+            insert(pair, nv);
+            return nv;
+        }
+        counts[i] = nv;
+        updates++;
+        if (delta > 0) siftUp(i);
+        else siftDown(i);
+        return nv;
+    }
+
+    /**
+     * Removes a pair from the heap.
+     */
+    public void remove(long pair) {
+        int i = positions.get(pair, -1);
+        if (i >= 0) removeAt(i);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the best pair (highest count, then tie-break); the heap must not be empty
+     */
+    public long peekPair() {
+        return pairs[0];
+    }
+
+    /**
+     * @return the count of the best pair; the heap must not be empty
+     */
+    public int peekCount() {
+        return counts[0];
+    }
+
+    /**
+     * Records that the best pair was selected for a merge, and whether it turned out to be stale
+     * (no occurrence left). Only feeds the counters.
+     */
+    public void recordPop(boolean stale) {
+        pops++;
+        if (stale) stalePops++;
+    }
+
+    public Stats stats() {
+        return new Stats(size, peakSize, updates, pops, stalePops);
+    }
+
+    private void insert(long pair, int count) {
+        if (size == pairs.length) {
+            pairs = Arrays.copyOf(pairs, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        pairs[size] = pair;
+        counts[size] = count;
+        positions.put(pair, size);
+        siftUp(size++);
+        if (size > peakSize) peakSize = size;
+    }
+
+    private void removeAt(int i) {
+        positions.remove(pairs[i], -1);
+        int last = --size;
+        if (i == last) return;
+        move(last, i);
+        siftDown(i);
+        siftUp(i);
+    }
+
+    private boolean before(int i, int j) {
+        if (counts[i] != counts[j]) return counts[i] > counts[j];
+        return tieBreak.compare(pairs[i], pairs[j]) < 0;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1;
+            if (l >= size) break;
+            int best = l + 1 < size && before(l + 1, l) ? l + 1 : l;
+            if (!before(best, i)) break;
+            swap(i, best);
+            i = best;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long p = pairs[i];
+        int c = counts[i];
+        pairs[i] = pairs[j];
+        counts[i] = counts[j];
+        pairs[j] = p;
+        counts[j] = c;
+        positions.put(pairs[i], i);
+        positions.put(pairs[j], j);
+    }
+
+    private void move(int from, int to) {
+        pairs[to] = pairs[from];
+        counts[to] = counts[from];
+        positions.put(pairs[to], to);
+    }
+}
@@ -0,0 +1,263 @@
+package udem.tj.taln;
+
+import java.util.Locale;
+
+/**
+ * Pre-tokenizer compiled from a {@link Utils.SplitConfig}: splits lines into words and punctuation tokens, handed to
+ * a {@link TokenSink} as {@link Token} views over a reused buffer.
+ * <p>
+ * The configuration is compiled once into a lookup table giving the class of every Latin-1 {@code char} (word,
+ * dropped, digit, punctuation or clitic-ending apostrophe; above, a char is a digit or part of a word), so splitting
+ * a line allocates nothing and builds no {@code String}. The text is lowercased character by character, except the
+ * lines or words whose {@link String#toLowerCase()} depends on their context (İ, Σ, supplementary characters, or any
+ * text under a Turkish, Azeri or Lithuanian default locale), which go through it.
+ * <p>
+ * Not thread-safe; {@link #fork()} gives another pre-tokenizer sharing the table, for another thread.
+ */
+public class PreTokenizer {
+
+    /**
+     * Receives the tokens of a line, in order.
+     */
+    public interface TokenSink {
+        /**
+         * @param token the token, valid during the call only
+         * @return false to stop the split of the line
+         */
+        boolean accept(Token token);
+    }
+
+    /**
+     * A token, as a slice of a buffer of the pre-tokenizer (reused for the next token).
+     */
+    public static final class Token implements CharSequence {
+        private char[] chars;
+        private int offset, length;
+
+        private Token set(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+
+        /**
+         * @return the buffer holding the token, from {@link #offset()}
+         */
+        public char[] array() {
+            return chars;
+        }
+
+        public int offset() {
+            return offset;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+
+    private static final byte WORD = 0, DROP = 1, DIGIT = 2, PUNCT = 3, CLITIC = 4;
+    private static final char[] AT = {'@'};
+
+    private final byte[] classes;           // Latin-1 char -> class
+    private final byte otherDigits;         // class of the digits above Latin-1
+    private final Utils.SplitConfig.Lowercasing lowercasing; // null if the text is not lowercased
+    private final boolean contextualLocale, splitPunctuation, ellipsis, digitBreaksWord;
+    private final Token token = new Token();
+    private char[] line = new char[256];    // copy of a CharSequence line
+    private char[] lowered = new char[64];  // line or word lowercased by String.toLowerCase
+    private char[] tok = new char[64];      // word being cleaned
+
+    /**
+     * Compiles a configuration.
+     *
+     * @param cfg the configuration; later changes to it are not seen
+     */
+    public PreTokenizer(Utils.SplitConfig cfg) {
+        if (!cfg.keepApostrophe && cfg.splitClitics)
+            System.err.println("Will not split clitics as apostrophes are discarded.");
+        classes = new byte[256];
+        for (int c = 0; c < classes.length; c++) {
+            if (cfg.digitsToAt && (cfg.asciiDigits ? c >= '0' && c <= '9' : Character.isDigit(c))) classes[c] = DIGIT;
+            else if (cfg.strictFlags && c == '-') classes[c] = cfg.keepHyphen ? WORD : DROP;
+            else if (cfg.strictFlags && c == '\'')
+                classes[c] = !cfg.keepApostrophe ? DROP : cfg.splitClitics ? CLITIC : WORD;
+            else if (cfg.dropped.indexOf(c) >= 0) classes[c] = DROP;
+            else if (".?!,:;".indexOf(c) >= 0) classes[c] = PUNCT;
+        }
+        otherDigits = cfg.digitsToAt && !cfg.asciiDigits ? DIGIT : WORD;
+        lowercasing = cfg.lowercase ? cfg.lowercasing : null;
+        String lang = Locale.getDefault().getLanguage();
+        contextualLocale = lang.equals("tr") || lang.equals("az") || lang.equals("lt");
+        splitPunctuation = cfg.splitPunctuation;
+        ellipsis = cfg.ellipsis;
+        digitBreaksWord = cfg.digitBreaksWord;
+    }
+
+    private PreTokenizer(PreTokenizer other) {
+        classes = other.classes;
+        otherDigits = other.otherDigits;
+        lowercasing = other.lowercasing;
+        contextualLocale = other.contextualLocale;
+        splitPunctuation = other.splitPunctuation;
+        ellipsis = other.ellipsis;
+        digitBreaksWord = other.digitBreaksWord;
+    }
+
+    /**
+     * @return a pre-tokenizer of the same configuration, with its own buffers
+     */
+    public PreTokenizer fork() {
+        return new PreTokenizer(this);
+    }
+
+    /**
+     * Splits a line.
+     *
+     * @param line the line
+     * @param sink receives the tokens
+     * @return false if the sink stopped the split
+     */
+    public boolean split(CharSequence line, TokenSink sink) {
+        int n = line.length();
+        if (this.line.length < n) this.line = new char[Math.max(n, this.line.length * 2)];
+        if (line instanceof String s) s.getChars(0, n, this.line, 0);
+        else for (int i = 0; i < n; i++) this.line[i] = line.charAt(i);
+        return split(this.line, 0, n, sink);
+    }
+
+    /**
+     * Splits the line made of {@code length} chars of {@code chars} from {@code offset}.
+     *
+     * @return false if the sink stopped the split
+     */
+    public boolean split(char[] chars, int offset, int length, TokenSink sink) {
+        if (lowercasing == Utils.SplitConfig.Lowercasing.LINE && contextual(chars, offset, offset + length)) {
+            int n = lowerString(chars, offset, length);
+            return words(lowered, 0, n, null, sink);
+        }
+        return words(chars, offset, length, lowercasing, sink);
+    }
+
+    /**
+     * Splits the words of a line, lowercasing them as asked (null: not at all).
+     */
+    private boolean words(char[] chars, int offset, int length, Utils.SplitConfig.Lowercasing lower, TokenSink sink) {
+        boolean perWord = lower == Utils.SplitConfig.Lowercasing.WORD;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            while (i < end && chars[i] == ' ') i++;
+            int start = i;
+            boolean contextual = perWord && contextualLocale;
+            for (char c; i < end && (c = chars[i]) != ' '; i++) {
+                if (perWord && (c == 'İ' || c == 'Σ' || Character.isSurrogate(c))) contextual = true;
+            }
+            if (start == i) break;
+            boolean more;
+            if (contextual) more = word(lowered, 0, lowerString(chars, start, i - start), false, sink);
+            else more = word(chars, start, i - start, lower != null, sink);
+            if (!more) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the lowercase of the chars depends on their context
+     */
+    private boolean contextual(char[] chars, int from, int to) {
+        if (contextualLocale) return true;
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c == 'İ' || c == 'Σ' || Character.isSurrogate(c)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lowercases chars with {@link String#toLowerCase()} into {@link #lowered}.
+     *
+     * @return the number of lowercase chars
+     */
+    private int lowerString(char[] chars, int offset, int length) {
+        String s = new String(chars, offset, length).toLowerCase();
+        if (lowered.length < s.length()) lowered = new char[Math.max(s.length(), lowered.length * 2)];
+        s.getChars(0, s.length(), lowered, 0);
+        return s.length();
+    }
+
+    /**
+     * Cleans and splits a word, lowercasing it character by character if asked.
+     */
+    private boolean word(char[] src, int offset, int length, boolean lower, TokenSink sink) {
+        if (tok.length < length) tok = new char[Math.max(length, tok.length * 2)];
+        int end = offset + length;
+        int len = 0;
+        for (int k = offset; k < end; k++) {
+            char c = src[k];
+            if (lower) c = c < 0x80 ? (c >= 'A' && c <= 'Z' ? (char) (c + 32) : c) : Character.toLowerCase(c);
+            switch (c < 256 ? classes[c] : Character.isDigit(c) ? otherDigits : WORD) {
+                case DROP -> {
+                }
+                case DIGIT -> {
+                    if (digitBreaksWord) {
+                        if (!flush(len, sink)) return false;
+                        len = 0;
+                    }
+                    if (!sink.accept(token.set(AT, 0, 1))) return false;
+                }
+                case PUNCT -> {
+                    if (!splitPunctuation) {
+                        tok[len++] = c;
+                        continue;
+                    }
+                    if (!flush(len, sink)) return false;
+                    len = 0;
+                    int n = ellipsis && c == '.' && k + 2 < end && src[k + 1] == '.' && src[k + 2] == '.' ? 3 : 1;
+                    if (!sink.accept(token.set(src, k, n))) return false;
+                    k += n - 1;
+                }
+                case CLITIC -> {
+                    tok[len++] = c;
+                    if (!flush(len, sink)) return false;
+                    len = 0;
+                }
+                default -> tok[len++] = c;
+            }
+        }
+        return flush(len, sink);
+    }
+
+    /**
+     * Emits the cleaned word, split from its trailing punctuation if punctuation is not split everywhere.
+     */
+    private boolean flush(int len, TokenSink sink) {
+        if (len == 0) return true;
+        if (!splitPunctuation) {
+            if (ellipsis && len > 3 && tok[len - 1] == '.' && tok[len - 2] == '.' && tok[len - 3] == '.')
+                return sink.accept(token.set(tok, 0, len - 3)) && sink.accept(token.set(tok, len - 3, 3));
+            char last = tok[len - 1];
+            if (len > 1 && last < 256 && classes[last] == PUNCT)
+                return sink.accept(token.set(tok, 0, len - 1)) && sink.accept(token.set(tok, len - 1, 1));
+        }
+        return sink.accept(token.set(tok, 0, len));
+    }
+}
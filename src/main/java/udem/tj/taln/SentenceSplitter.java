@@ -0,0 +1,64 @@
+package udem.tj.taln;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Splits lines of text into sentences of words and punctuation, keeping the unfinished sentence between lines.
+ * <p>
+ * The tokens are the ones of a {@link PreTokenizer} of {@link Utils.SplitConfig#sentences()}: lowercase, digits
+ * become "@", quotes, brackets and tabs are dropped, spaces separate words and {@code . ? ! , : ;} (and "...") are
+ * punctuation tokens; {@code . ? !} (and "...") end the sentence. Words do not span lines, sentences do.
+ */
+public class SentenceSplitter {
+
+    private final PreTokenizer preTokenizer = new PreTokenizer(Utils.SplitConfig.sentences());
+    private final PreTokenizer.TokenSink collect = this::add;
+    private List<String> cur = new ArrayList<>(32);
+    private Predicate<List<String>> sink;
+
+    /**
+     * Splits a line, passing every sentence it completes to the sink.
+     *
+     * @param line the line to split
+     * @param sink receives the completed sentences; returning false stops the split of the line (the rest of the
+     *             line is dropped)
+     * @return false if the sink stopped the split
+     */
+    public boolean accept(CharSequence line, Predicate<List<String>> sink) {
+        this.sink = sink;
+        return preTokenizer.split(line, collect);
+    }
+
+    /**
+     * Splits the line made of {@code length} chars of {@code chars} from {@code offset}.
+     *
+     * @see #accept(CharSequence, Predicate)
+     */
+    public boolean accept(char[] chars, int offset, int length, Predicate<List<String>> sink) {
+        this.sink = sink;
+        return preTokenizer.split(chars, offset, length, collect);
+    }
+
+    private boolean add(PreTokenizer.Token token) {
+        String s = token.toString();
+        cur.add(s);
+        if (s.equals(".") || s.equals("?") || s.equals("!") || s.equals("...")) {
+            List<String> sentence = cur;
+            cur = new ArrayList<>(32);
+            return sink.test(sentence);
+        }
+        return true;
+    }
+
+    /**
+     * @return the unfinished sentence (null if empty), which is then cleared
+     */
+    public List<String> flush() {
+        if (cur.isEmpty()) return null;
+        List<String> sentence = cur;
+        cur = new ArrayList<>(32);
+        return sentence;
+    }
+}
@@ -0,0 +1,99 @@
+package udem.tj.taln;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Interns BPE symbols (single characters and merged subwords) into dense integer ids,
+ * so that training and tokenization can work on {@code int} ids and packed {@code long} pair keys
+ * instead of building {@code "left right"} strings.
+ * <p>
+ * Ids are assigned in insertion order, starting from 0, and never change.
+ */
+public class SymbolTable {
+    private final List<String> symbols = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Returns the id of the given symbol, assigning a new one if it was never seen.
+     *
+     * @param symbol the symbol to intern
+     * @return the id of the symbol
+     */
+    public int intern(String symbol) {
+        Integer id = ids.get(symbol);
+        if (id != null) return id;
+        int nid = symbols.size();
+        symbols.add(symbol);
+        ids.put(symbol, nid);
+        return nid;
+    }
+
+    /**
+     * @param symbol the symbol to look up
+     * @return the id of the symbol, or -1 if it was never interned
+     */
+    public int find(String symbol) {
+        Integer id = ids.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id a symbol id
+     * @return the symbol associated with the id
+     */
+    public String get(int id) {
+        return symbols.get(id);
+    }
+
+    public int size() {
+        return symbols.size();
+    }
+
+    /**
+     * Packs two symbol ids into a single {@code long} pair key (left in the high 32 bits).
+     */
+    public static long pairKey(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    public static int pairLeft(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int pairRight(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Formats a pair key the way merges are written in the merges files ({@code "left right"}).
+     */
+    public String pairString(long key) {
+        return get(pairLeft(key)) + " " + get(pairRight(key));
+    }
+
+    /**
+     * Compares two pairs exactly as {@code pairString(a).compareTo(pairString(b))} would,
+     * without building the strings. Used as the deterministic tie-break between pairs of equal count.
+     */
+    public int comparePairs(long a, long b) {
+        if (a == b) return 0;
+        String la = get(pairLeft(a)), ra = get(pairRight(a));
+        String lb = get(pairLeft(b)), rb = get(pairRight(b));
+        int lenA = la.length() + 1 + ra.length();
+        int lenB = lb.length() + 1 + rb.length();
+        int n = Math.min(lenA, lenB);
+        for (int k = 0; k < n; k++) {
+            char ca = pairChar(la, ra, k), cb = pairChar(lb, rb, k);
+            if (ca != cb) return ca - cb;
+        }
+        return lenA - lenB;
+    }
+
+    private static char pairChar(String left, String right, int k) {
+        int ll = left.length();
+        if (k < ll) return left.charAt(k);
+        return k == ll ? ' ' : right.charAt(k - ll - 1);
+    }
+}
@@ -0,0 +1,204 @@
+package udem.tj.taln;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded concurrent cache of word segmentations with a frequency-based admission policy (TinyLFU).
+ * <p>
+ * Lookups read a {@link ConcurrentHashMap} and only record the key in a frequency sketch, so a hit takes no lock and
+ * reorders nothing. Insertions lock one stripe out of {@link #STRIPES}: when the stripe is full, the new key is only
+ * admitted if its estimated frequency is higher than the one of the stripe's oldest entry, which is then evicted.
+ * An oldest entry that wins keeps its place but moves to the back, so the next insertion is compared with another one.
+ * The long tail of rare words thus cannot flush the frequent ones, unlike with a plain LRU.
+ * <p>
+ * The frequencies are estimated by a count-min sketch of 4-bit counters, halved every {@code 10 * capacity} records so
+ * that they follow the recent frequencies. Sketch updates are not atomic: a lost increment only makes an estimate
+ * slightly lower.
+ *
+ * @param <V> the cached values
+ */
+public class TokenCache<V> {
+
+    public static final int STRIPES = 16;
+    private static final int DEPTH = 4;
+
+    /**
+     * Snapshot of the cache counters.
+     *
+     * @param size       the number of cached entries
+     * @param hits       the number of lookups that found their key
+     * @param misses     the number of lookups that did not
+     * @param evictions  the number of entries evicted to admit a new one
+     * @param rejections the number of insertions refused by the admission policy
+     */
+    public record Stats(int size, long hits, long misses, long evictions, long rejections) {
+        public double hitRate() {
+            long n = hits + misses;
+            return n == 0 ? 0.0 : (double) hits / n;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "size=%d, hits=%d, misses=%d, hitRate=%.4f, evictions=%d, rejections=%d",
+                    size, hits, misses, hitRate(), evictions, rejections);
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, V> map;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final long[] sketch;  // 16 4-bit counters per long
+    private final int sketchMask;
+    private final int sampleSize;
+    private int records;          // records since the last halving (racy, only a trigger)
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder(), rejections = new LongAdder();
+
+    /**
+     * Insertion-ordered keys of a stripe, guarded by the stripe itself.
+     */
+    private static final class Stripe {
+        final ArrayDeque<String> order = new ArrayDeque<>();
+        final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * @param capacity the maximum number of entries (at least {@link #STRIPES})
+     */
+    public TokenCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = Math.max(capacity, STRIPES);
+        this.map = new ConcurrentHashMap<>(Math.min(this.capacity, 1 << 16));
+        for (int s = 0; s < STRIPES; s++) {
+            stripes[s] = new Stripe(this.capacity / STRIPES + (s < this.capacity % STRIPES ? 1 : 0));
+        }
+        int words = 16;
+        while (words < this.capacity / 4) words <<= 1; // 4 to 8 counters per entry
+        sketch = new long[words];
+        sketchMask = words - 1;
+        sampleSize = 10 * this.capacity;
+    }
+
+    /**
+     * @return the value cached for the key, or null; the access is recorded in the frequency sketch
+     */
+    public V get(String key) {
+        record(key);
+        V v = map.get(key);
+        if (v != null) hits.increment();
+        else misses.increment();
+        return v;
+    }
+
+    /**
+     * Returns the cached value of the key, computing it (outside of any lock) and offering it to the cache on a miss.
+     */
+    public V computeIfAbsent(String key, Function<String, V> compute) {
+        V v = get(key);
+        if (v != null) return v;
+        v = compute.apply(key);
+        put(key, v);
+        return v;
+    }
+
+    /**
+     * Offers an entry to the cache. If the stripe of the key is full, the entry is admitted only if the key is more
+     * frequent than the stripe's oldest entry.
+     */
+    public void put(String key, V value) {
+        Stripe stripe = stripes[spread(key.hashCode()) & (STRIPES - 1)];
+        synchronized (stripe) {
+            if (map.containsKey(key)) return;
+            if (stripe.order.size() >= stripe.capacity) {
+                String victim = stripe.order.pollFirst();
+                if (frequency(key) <= frequency(victim)) {
+                    stripe.order.addLast(victim);
+                    rejections.increment();
+                    return;
+                }
+                map.remove(victim);
+                evictions.increment();
+            }
+            stripe.order.addLast(key);
+            map.put(key, value);
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Removes every entry; the frequencies and the counters are kept.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (String k : stripe.order) map.remove(k);
+                stripe.order.clear();
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(map.size(), hits.sum(), misses.sum(), evictions.sum(), rejections.sum());
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Increments the 4 counters of the key (saturating at 15) and halves every counter once per sample.
+     */
+    private void record(String key) {
+        int h = spread(key.hashCode());
+        for (int d = 0; d < DEPTH; d++) {
+            int c = counter(h, d);
+            int word = c >>> 4, shift = (c & 15) << 2;
+            long w = sketch[word];
+            if (((w >>> shift) & 15) < 15) sketch[word] = w + (1L << shift);
+        }
+        if (++records >= sampleSize) {
+            records = 0;
+            for (int i = 0; i < sketch.length; i++) sketch[i] = (sketch[i] >>> 1) & 0x7777777777777777L;
+        }
+    }
+
+    /**
+     * @return the estimated recent frequency of the key (the smallest of its counters)
+     */
+    private int frequency(String key) {
+        int h = spread(key.hashCode());
+        int f = 15;
+        for (int d = 0; d < DEPTH; d++) {
+            int c = counter(h, d);
+            f = Math.min(f, (int) ((sketch[c >>> 4] >>> ((c & 15) << 2)) & 15));
+        }
+        return f;
+    }
+
+    /**
+     * @return the index of the counter of row {@code d} for hash {@code h}, over {@code 16 * sketch.length} counters
+     */
+    private int counter(int h, int d) {
+        int x = (h + d * 0x61C88647) * 0x85EBCA6B;
+        x ^= x >>> 15;
+        return x & ((sketchMask << 4) | 15);
+    }
+}
@@ -0,0 +1,260 @@
+package udem.tj.taln;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming corpus-to-tokens pipeline: reader -> pre-tokenizer ({@link SentenceSplitter}) -> BPE ({@link BpeModel})
+ * -> writer, each stage in its own thread, connected by bounded queues of batches.
+ * <p>
+ * A full queue blocks the stage that feeds it (backpressure), so the memory used is bounded by the queue capacity and
+ * the batch size, whatever the size of the file. Every stage counts its items, its tokens and the time it spends
+ * working (queue waits excluded), see {@link StageStats}. If a stage fails, the others stop and {@link #run} rethrows.
+ */
+public class TokenPipeline {
+
+    /**
+     * Counters of a stage.
+     *
+     * @param stage     the name of the stage
+     * @param items     the lines (reader, pre-tokenizer) or sentences (BPE, writer) processed
+     * @param tokens    the words (pre-tokenizer) or subword tokens (BPE, writer) produced
+     * @param busyNanos the time spent working, queue waits excluded
+     */
+    public record StageStats(String stage, long items, long tokens, long busyNanos) {
+        public double itemsPerSecond() {
+            return busyNanos == 0 ? 0.0 : items * 1e9 / busyNanos;
+        }
+
+        public double tokensPerSecond() {
+            return busyNanos == 0 ? 0.0 : tokens * 1e9 / busyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: items=%d (%.0f/s), tokens=%d (%.0f/s), busy=%d ms",
+                    stage, items, itemsPerSecond(), tokens, tokensPerSecond(), busyNanos / 1_000_000);
+        }
+    }
+
+    private static final List<?> END = new ArrayList<>(0); // end-of-stream marker, compared by identity
+
+    private final BpeModel model;
+    private final int queueCapacity;
+    private final int batchSize;
+
+    private volatile boolean stop;      // the pre-tokenizer reached the sentence limit, or a stage failed
+    private volatile Throwable failure;
+
+    /**
+     * @param model         the model used by the BPE stage
+     * @param queueCapacity the number of batches each queue holds
+     * @param batchSize     the number of lines or sentences per batch
+     */
+    public TokenPipeline(BpeModel model, int queueCapacity, int batchSize) {
+        this.model = model;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Streams a file through the pipeline, writing one line of space-separated tokens per sentence.
+     *
+     * @param file         the corpus file (see {@link Utils#getReader(String)})
+     * @param firstLine    the number of lines to skip first
+     * @param maxSentences the maximum number of sentences ({@link Integer#MAX_VALUE} for the whole file)
+     * @param out          the destination; not closed
+     * @return the counters of the reader, pre-tokenizer, BPE and writer stages
+     * @throws IOException if reading or writing fails
+     */
+    public List<StageStats> run(String file, int firstLine, int maxSentences, Writer out) throws IOException {
+        stop = false;
+        failure = null;
+        BlockingQueue<List<String>> lines = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<List<List<String>>> sentences = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<List<String>> tokenized = new ArrayBlockingQueue<>(queueCapacity);
+        StageStats[] stats = new StageStats[4];
+
+        Thread[] threads = {
+                new Thread(() -> stats[0] = guard("reader", () -> read(file, firstLine, lines)), "pipeline-reader"),
+                new Thread(() -> stats[1] = guard("pre-tokenizer", () -> split(lines, sentences, maxSentences)), "pipeline-split"),
+                new Thread(() -> stats[2] = guard("bpe", () -> tokenize(sentences, tokenized)), "pipeline-bpe"),
+                new Thread(() -> stats[3] = guard("writer", () -> write(tokenized, out)), "pipeline-writer"),
+        };
+        for (Thread t : threads) t.start();
+        try {
+            for (Thread t : threads) t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop = true;
+            throw new IOException("Pipeline interrupted", e);
+        }
+        if (failure instanceof IOException io) throw io;
+        if (failure != null) throw new RuntimeException("Pipeline stage failed", failure);
+        return List.of(stats);
+    }
+
+    private interface Stage {
+        StageStats run() throws Exception;
+    }
+
+    private StageStats guard(String name, Stage stage) {
+        try {
+            return stage.run();
+        } catch (Throwable t) {
+            if (failure == null) failure = t;
+            stop = true;
+            return new StageStats(name, 0, 0, 0);
+        }
+    }
+
+    private StageStats read(String file, int firstLine, BlockingQueue<List<String>> lines) throws Exception {
+        long items = 0, busy = 0;
+        try (BufferedReader br = new BufferedReader(Utils.getReader(file), 1 << 20)) {
+            long t = System.nanoTime();
+            for (int i = 0; i < firstLine; i++) {
+                if (br.readLine() == null) break;
+            }
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            while (!stop && (line = br.readLine()) != null) {
+                batch.add(line);
+                items++;
+                if (batch.size() == batchSize) {
+                    busy += System.nanoTime() - t;
+                    put(lines, batch);
+                    t = System.nanoTime();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            busy += System.nanoTime() - t;
+            if (!batch.isEmpty()) put(lines, batch);
+        } finally {
+            end(lines);
+        }
+        return new StageStats("reader", items, 0, busy);
+    }
+
+    private StageStats split(BlockingQueue<List<String>> lines, BlockingQueue<List<List<String>>> sentences,
+                             int maxSentences) throws Exception {
+        long items = 0, busy = 0;
+        long[] tokens = {0};
+        int[] emitted = {0};
+        SentenceSplitter splitter = new SentenceSplitter();
+        try {
+            List<List<String>> out = new ArrayList<>(batchSize);
+            List<String> batch;
+            while ((batch = take(lines)) != null) {
+                long t = System.nanoTime();
+                for (String line : batch) {
+                    if (emitted[0] >= maxSentences) break;
+                    items++;
+                    List<List<String>> sink = out;
+                    splitter.accept(line, s -> {
+                        sink.add(s);
+                        tokens[0] += s.size();
+                        return ++emitted[0] < maxSentences;
+                    });
+                }
+                if (emitted[0] >= maxSentences) stop = true;
+                busy += System.nanoTime() - t;
+                if (out.size() >= batchSize || stop) {
+                    put(sentences, out);
+                    out = new ArrayList<>(batchSize);
+                }
+                if (stop) break;
+            }
+            // unblocks the reader, which may be waiting on a full queue
+            if (batch != null) while (take(lines) != null) ;
+            // last unfinished sentence
+            List<String> last = splitter.flush();
+            if (last != null && emitted[0] < maxSentences && failure == null) {
+                out.add(last);
+                tokens[0] += last.size();
+            }
+            if (!out.isEmpty()) put(sentences, out);
+        } finally {
+            end(sentences);
+        }
+        return new StageStats("pre-tokenizer", items, tokens[0], busy);
+    }
+
+    private StageStats tokenize(BlockingQueue<List<List<String>>> sentences, BlockingQueue<List<String>> tokenized)
+            throws Exception {
+        long items = 0, tokens = 0, busy = 0;
+        try {
+            StringBuilder sb = new StringBuilder();
+            List<List<String>> batch;
+            while ((batch = take(sentences)) != null) {
+                long t = System.nanoTime();
+                List<String> out = new ArrayList<>(batch.size());
+                for (List<String> sentence : batch) {
+                    sb.setLength(0);
+                    for (String w : sentence) {
+                        for (String tok : model.tokenize(w)) {
+                            if (!sb.isEmpty()) sb.append(' ');
+                            sb.append(tok);
+                            tokens++;
+                        }
+                    }
+                    out.add(sb.toString());
+                    items++;
+                }
+                busy += System.nanoTime() - t;
+                put(tokenized, out);
+            }
+        } finally {
+            end(tokenized);
+        }
+        return new StageStats("bpe", items, tokens, busy);
+    }
+
+    private StageStats write(BlockingQueue<List<String>> tokenized, Writer out) throws Exception {
+        long items = 0, tokens = 0, busy = 0;
+        List<String> batch;
+        while ((batch = take(tokenized)) != null) {
+            long t = System.nanoTime();
+            for (String line : batch) {
+                out.write(line);
+                out.write('\n');
+                items++;
+                if (!line.isEmpty()) tokens++;
+                for (int i = 0; i < line.length(); i++) if (line.charAt(i) == ' ') tokens++;
+            }
+            busy += System.nanoTime() - t;
+        }
+        long t = System.nanoTime();
+        out.flush();
+        busy += System.nanoTime() - t;
+        return new StageStats("writer", items, tokens, busy);
+    }
+
+    /**
+     * Blocks until the queue accepts the batch, unless the pipeline is aborted by a failure.
+     */
+    private <T> void put(BlockingQueue<T> queue, T batch) throws InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (failure != null) throw new IllegalStateException("Pipeline aborted");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void end(BlockingQueue<T> queue) throws InterruptedException {
+        put(queue, (T) END);
+    }
+
+    /**
+     * @return the next batch, or null at the end of the stream
+     */
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T batch = queue.take();
+        return batch == END ? null : batch;
+    }
+}
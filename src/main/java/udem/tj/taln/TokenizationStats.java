@@ -0,0 +1,267 @@
+package udem.tj.taln;
+
+import java.io.Serial;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Tokenization statistics over a vocabulary, computed in a single parallel pass.
+ * <p>
+ * The words are sorted by decreasing frequency (the rank gives the decile), then every word is tokenized exactly
+ * once by a fork/join task. Each leaf task fills its own {@link Accumulator} (segment histogram, per-decile sums,
+ * frequency-weighted sums and a latency histogram), and the accumulators are merged pairwise on the way up, so the
+ * workers share no counter.
+ * <p>
+ * The latencies go in a log-linear histogram (16 sub-buckets per power of two, so a percentile is within about 6% of
+ * the measured value) whose size does not depend on the number of words.
+ */
+public class TokenizationStats {
+
+    private static final int GRAIN = 1024;  // words handled by a leaf task
+    private static final int SUB_BITS = 4;  // latency sub-buckets per power of two: 2^SUB_BITS
+    private static final int LATENCY_BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+    /**
+     * Mergeable counters of a range of words.
+     */
+    static final class Accumulator {
+        long[] histogram = new long[16];   // number of segments -> words
+        final double[] decileSum = new double[10];
+        final long[] decileWords = new long[10];
+        final long[] latencies = new long[LATENCY_BUCKETS];
+        long words, tokens;
+        long occurrences, weightedTokens;    // sums over the word frequencies
+
+        void add(int decile, int segments, long frequency, long latencyNanos) {
+            if (segments >= histogram.length) histogram = Arrays.copyOf(histogram, Math.max(segments + 1, histogram.length * 2));
+            histogram[segments]++;
+            decileSum[decile] += segments;
+            decileWords[decile]++;
+            latencies[latencyBucket(latencyNanos)]++;
+            words++;
+            tokens += segments;
+            occurrences += frequency;
+            weightedTokens += frequency * segments;
+        }
+
+        Accumulator merge(Accumulator other) {
+            if (other.histogram.length > histogram.length) histogram = Arrays.copyOf(histogram, other.histogram.length);
+            for (int i = 0; i < other.histogram.length; i++) histogram[i] += other.histogram[i];
+            for (int d = 0; d < 10; d++) {
+                decileSum[d] += other.decileSum[d];
+                decileWords[d] += other.decileWords[d];
+            }
+            for (int i = 0; i < LATENCY_BUCKETS; i++) latencies[i] += other.latencies[i];
+            words += other.words;
+            tokens += other.tokens;
+            occurrences += other.occurrences;
+            weightedTokens += other.weightedTokens;
+            return this;
+        }
+    }
+
+    private final Accumulator acc;
+    private final long wallNanos;
+
+    private TokenizationStats(Accumulator acc, long wallNanos) {
+        this.acc = acc;
+        this.wallNanos = wallNanos;
+    }
+
+    /**
+     * Computes the statistics on the common pool.
+     *
+     * @see #compute(Map, ToIntFunction, int)
+     */
+    public static TokenizationStats compute(Map<String, AtomicInteger> counts, ToIntFunction<String> tokenCounter) {
+        return compute(counts, tokenCounter, ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Tokenizes every word of a vocabulary once and computes the statistics.
+     *
+     * @param counts       the words and their frequencies
+     * @param tokenCounter returns the number of tokens of a word (e.g. {@link BpeModel#countTokens}); must be
+     *                     thread-safe
+     * @param parallelism  the number of worker threads (1 for the calling thread only)
+     * @return the statistics
+     */
+    public static TokenizationStats compute(Map<String, AtomicInteger> counts, ToIntFunction<String> tokenCounter,
+                                            int parallelism) {
+        // snapshot of the frequencies, sorted by decreasing frequency (stable, as the previous sequential pass)
+        String[] words = new String[counts.size()];
+        long[] freqs = new long[counts.size()];
+        Integer[] order = new Integer[counts.size()];
+        int k = 0;
+        for (var e : counts.entrySet()) {
+            words[k] = e.getKey();
+            freqs[k] = e.getValue().get();
+            order[k] = k;
+            k++;
+        }
+        Arrays.parallelSort(order, (a, b) -> Long.compare(freqs[b], freqs[a]));
+
+        int n = words.length;
+        int[] bounds = new int[11]; // decile d covers the ranks [bounds[d], bounds[d + 1])
+        for (int d = 0; d <= 10; d++) bounds[d] = (int) Math.floor(d / 10.0 * n);
+
+        long t0 = System.nanoTime();
+        StatsTask task = new StatsTask(words, freqs, order, bounds, tokenCounter, 0, n);
+        Accumulator acc;
+        if (parallelism <= 1 || n <= GRAIN) acc = task.compute();
+        else if (parallelism == ForkJoinPool.getCommonPoolParallelism()) acc = ForkJoinPool.commonPool().invoke(task);
+        else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                acc = pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return new TokenizationStats(acc, System.nanoTime() - t0);
+    }
+
+    /**
+     * Fork/join task tokenizing a range of ranks, halved until it is below {@link #GRAIN}.
+     */
+    private static final class StatsTask extends RecursiveTask<Accumulator> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String[] words;
+        private final long[] freqs;
+        private final Integer[] order;
+        private final int[] bounds;
+        private final transient ToIntFunction<String> tokenCounter;
+        private final int lo, hi;
+
+        StatsTask(String[] words, long[] freqs, Integer[] order, int[] bounds, ToIntFunction<String> tokenCounter,
+                  int lo, int hi) {
+            this.words = words;
+            this.freqs = freqs;
+            this.order = order;
+            this.bounds = bounds;
+            this.tokenCounter = tokenCounter;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Accumulator compute() {
+            if (hi - lo <= GRAIN) {
+                Accumulator acc = new Accumulator();
+                int decile = 0;
+                while (decile < 9 && bounds[decile + 1] <= lo) decile++;
+                for (int rank = lo; rank < hi; rank++) {
+                    while (decile < 9 && bounds[decile + 1] <= rank) decile++;
+                    int w = order[rank];
+                    long t = System.nanoTime();
+                    int segments = tokenCounter.applyAsInt(words[w]);
+                    acc.add(decile, segments, freqs[w], System.nanoTime() - t);
+                }
+                return acc;
+            }
+            int mid = (lo + hi) >>> 1;
+            StatsTask right = new StatsTask(words, freqs, order, bounds, tokenCounter, mid, hi);
+            right.fork();
+            Accumulator left = new StatsTask(words, freqs, order, bounds, tokenCounter, lo, mid).compute();
+            return left.merge(right.join());
+        }
+    }
+
+    /**
+     * @return the bucket of a latency: exact below 2^SUB_BITS ns, then 2^SUB_BITS linear sub-buckets per power of two
+     */
+    static int latencyBucket(long nanos) {
+        if (nanos < (1L << SUB_BITS)) return (int) Math.max(nanos, 0);
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    /**
+     * @return the smallest latency of a bucket
+     */
+    static long latencyLowerBound(int bucket) {
+        if (bucket < (1 << SUB_BITS)) return bucket;
+        int exp = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & ((1 << SUB_BITS) - 1);
+        return (1L << exp) | (sub << (exp - SUB_BITS));
+    }
+
+    public long words() {
+        return acc.words;
+    }
+
+    public long tokens() {
+        return acc.tokens;
+    }
+
+    /**
+     * @return the average number of tokens per word type
+     */
+    public double avgTokensPerWord() {
+        return acc.words == 0 ? 0.0 : (double) acc.tokens / acc.words;
+    }
+
+    /**
+     * @return the average number of tokens per word occurrence (weighted by the frequencies)
+     */
+    public double weightedAvgTokensPerWord() {
+        return acc.occurrences == 0 ? 0.0 : (double) acc.weightedTokens / acc.occurrences;
+    }
+
+    /**
+     * @return the number of segments -> percentage of the word types with that many segments, by increasing number
+     */
+    public Map<Integer, Double> pctByNSegments() {
+        Map<Integer, Double> pct = new LinkedHashMap<>();
+        for (int s = 0; s < acc.histogram.length; s++) {
+            if (acc.histogram[s] > 0) pct.put(s, 100.0 * acc.histogram[s] / Math.max(1, acc.words));
+        }
+        return pct;
+    }
+
+    /**
+     * @return decile (1 for the most frequent tenth of the types) -> average number of segments, NaN for an empty decile
+     */
+    public Map<Integer, Double> decileAvg() {
+        Map<Integer, Double> avg = new LinkedHashMap<>();
+        for (int d = 0; d < 10; d++) {
+            avg.put(d + 1, acc.decileWords[d] == 0 ? Double.NaN : acc.decileSum[d] / acc.decileWords[d]);
+        }
+        return avg;
+    }
+
+    /**
+     * @param q the quantile, in [0, 1]
+     * @return the per-word tokenization latency at that quantile, in nanoseconds (lower bound of its bucket)
+     */
+    public long latencyPercentile(double q) {
+        if (acc.words == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(q * acc.words));
+        long seen = 0;
+        for (int b = 0; b < LATENCY_BUCKETS; b++) {
+            seen += acc.latencies[b];
+            if (seen >= target) return latencyLowerBound(b);
+        }
+        return latencyLowerBound(LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * @return the wall-clock time of the pass over all the words, on all the worker threads
+     */
+    public long wallMillis() {
+        return wallNanos / 1_000_000;
+    }
+
+    /**
+     * @return the word types tokenized per second of wall-clock time
+     */
+    public double wordsPerSecond() {
+        return wallNanos == 0 ? 0.0 : acc.words * 1e9 / wallNanos;
+    }
+}
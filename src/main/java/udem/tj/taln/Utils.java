@@ -1,53 +1,20 @@
 package udem.tj.taln;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
- * A utility class providing various helper functions, such as text processing, file reading,
- * and CSV writing utilities. It includes methods for splitting strings into processed words,
- * obtaining readers for input files, and writing CSV files, as well as a configuration class for customizing
- * text-splitting behavior.
+ * A utility class providing various helper functions, such as file reading and CSV writing utilities.
+ * It includes methods for obtaining readers for input files and writing CSV files, as well as a configuration
+ * class for customizing text-splitting behavior (applied by {@link PreTokenizer}).
  */
 public class Utils {
 
-    /**
-     * Splits a given line of text into a list of cleaned words. This method removes empty strings,
-     * processes each word by cleaning out punctuation, replacing numbers with '@', and normalizing the text to lowercase.
-     * Punctuation and unwanted characters are excluded.
-     *
-     * @param line the input line of text to be split and processed
-     * @return a list of strings representing the cleaned words from the input line
-     */
-    public static List<String> splitLine(String line) {
-        List<String> example = new ArrayList<>(Arrays.asList(line.split(" ")));
-        example.removeIf(String::isEmpty);
-        List<String> lineWords = new ArrayList<>();
-
-        for (String word : example) {
-            List<Character> num = Arrays.asList('0', '1', '2', '3', '4', '5', '6', '7', '8', '9');
-            List<Character> punctuation = Arrays.asList('"', '(', ')', '{', '}', '-', '[', ']', '\t');
-            List<Character> processed = new ArrayList<>();
-
-            // cleaning the entry
-            for (char c : word.toLowerCase().toCharArray()) {
-                if (num.contains(c)) {
-                    c = '@';
-                    lineWords.add(c + "");
-                    continue;
-                }
-                if (punctuation.contains(c)) continue;
-                processed.add(c);
-            }
-
-            // counting the string made of the concat' of all chars
-            lineWords.add(processed.stream().map(Object::toString).reduce("", String::concat));
-        }
-        return lineWords;
-    }
-
     /**
      * Function debugged with LLM.
      * <p>
@@ -75,44 +42,70 @@ public class Utils {
                 }
             }
 
-            // Try as external file with absolute path
-            File externalFile = new File(file);
-            if (externalFile.exists() && externalFile.isFile()) {
-                return new InputStreamReader(new FileInputStream(externalFile));
-            }
-
-            // Try relative to current working directory
-            File relativeFile = new File(System.getProperty("user.dir"), file.startsWith("/") ? file.substring(1) : file);
-            if (relativeFile.exists() && relativeFile.isFile()) {
-                return new InputStreamReader(new FileInputStream(relativeFile));
-            }
-
-            // Try in common data directories
-            String[] commonPaths = {
-                    "src/main/resources" + file,
-                    "data" + file,
-                    "resources" + file,
-                    "." + file
-            };
-
-            for (String path : commonPaths) {
-                File commonFile = new File(path);
-                if (commonFile.exists() && commonFile.isFile()) {
-                    return new InputStreamReader(new FileInputStream(commonFile));
-                }
+            File found = findFile(file);
+            if (found != null) {
+                return new InputStreamReader(new FileInputStream(found));
             }
 
             throw new FileNotFoundException("File not found in classpath, external path, or common locations: " + file +
                     "\nSearched locations:" +
                     "\n- Classpath: " + file +
                     "\n- Absolute path: " + file +
-                    "\n- Relative to working directory: " + relativeFile.getAbsolutePath() +
+                    "\n- Relative to working directory: " +
+                    new File(System.getProperty("user.dir"), file.startsWith("/") ? file.substring(1) : file).getAbsolutePath() +
                     "\n- Common data directories");
         } catch (FileNotFoundException e) {
             throw new RuntimeException("Unable to read file: " + file, e);
         }
     }
 
+    /**
+     * Resolves the file {@link #getReader(String)} would read, when it is a file of the file system.
+     *
+     * @param file the file name or path
+     * @return the path of the file, or null if it is a classpath resource inside an archive or cannot be found
+     */
+    public static Path resolveFile(String file) {
+        URL resource = Utils.class.getResource(file);
+        if (resource == null && file.startsWith("/")) resource = Utils.class.getResource(file.substring(1));
+        if (resource != null) {
+            if (!"file".equals(resource.getProtocol())) return null;
+            try {
+                return Path.of(resource.toURI());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        File found = findFile(file);
+        return found == null ? null : found.toPath();
+    }
+
+    /**
+     * Looks for a file as an external path, relative to the working directory, then in the common data directories.
+     */
+    private static File findFile(String file) {
+        // Try as external file with absolute path
+        File externalFile = new File(file);
+        if (externalFile.exists() && externalFile.isFile()) return externalFile;
+
+        // Try relative to current working directory
+        File relativeFile = new File(System.getProperty("user.dir"), file.startsWith("/") ? file.substring(1) : file);
+        if (relativeFile.exists() && relativeFile.isFile()) return relativeFile;
+
+        // Try in common data directories
+        String[] commonPaths = {
+                "src/main/resources" + file,
+                "data" + file,
+                "resources" + file,
+                "." + file
+        };
+        for (String path : commonPaths) {
+            File commonFile = new File(path);
+            if (commonFile.exists() && commonFile.isFile()) return commonFile;
+        }
+        return null;
+    }
+
     /**
      * Writes a CSV file to the specified path with the given header and rows.
      * Each row and the optional header are joined into a single string using spaces and then written line by line.
@@ -137,6 +130,89 @@ public class Utils {
         }
     }
 
+    /**
+     * Reads a vocabulary file in the {@code vocab.json} format of Hugging Face tokenizers: one JSON object mapping
+     * every token to its integer id.
+     *
+     * @param path the vocabulary file (UTF-8)
+     * @return the tokens and their ids, in file order
+     * @throws IOException if the file cannot be read or is not such an object
+     */
+    public static LinkedHashMap<String, Integer> readVocabJson(Path path) throws IOException {
+        String json = Files.readString(path);
+        LinkedHashMap<String, Integer> vocab = new LinkedHashMap<>();
+        int[] pos = {skipSpaces(json, 0)};
+        expect(json, pos, '{', path);
+        int first = skipSpaces(json, pos[0]);
+        if (first < json.length() && json.charAt(first) == '}') return vocab;
+        while (true) {
+            String token = readJsonString(json, pos, path);
+            expect(json, pos, ':', path);
+            int start = pos[0] = skipSpaces(json, pos[0]);
+            int end = start;
+            if (end < json.length() && json.charAt(end) == '-') end++;
+            while (end < json.length() && Character.isDigit(json.charAt(end))) end++;
+            try {
+                vocab.put(token, Integer.parseInt(json.substring(start, end)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid id at " + start + " in " + path);
+            }
+            pos[0] = skipSpaces(json, end);
+            if (pos[0] < json.length() && json.charAt(pos[0]) == ',') {
+                pos[0]++;
+                continue;
+            }
+            expect(json, pos, '}', path);
+            return vocab;
+        }
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    private static void expect(String s, int[] pos, char c, Path path) throws IOException {
+        int i = skipSpaces(s, pos[0]);
+        if (i >= s.length() || s.charAt(i) != c) throw new IOException("Expected '" + c + "' at " + i + " in " + path);
+        pos[0] = i + 1;
+    }
+
+    private static String readJsonString(String s, int[] pos, Path path) throws IOException {
+        expect(s, pos, '"', path);
+        StringBuilder sb = new StringBuilder();
+        for (int i = pos[0]; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                pos[0] = i + 1;
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= s.length()) break;
+            switch (s.charAt(i)) {
+                case 'n' -> sb.append('\n');
+                case 't' -> sb.append('\t');
+                case 'r' -> sb.append('\r');
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'u' -> {
+                    if (i + 4 >= s.length()) throw new IOException("Invalid escape at " + i + " in " + path);
+                    try {
+                        sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid escape at " + i + " in " + path);
+                    }
+                    i += 4;
+                }
+                default -> sb.append(s.charAt(i)); // \" \\ \/
+            }
+        }
+        throw new IOException("Unterminated string in " + path);
+    }
+
     /**
      * The SplitConfig class provides configuration options for text splitting and word processing
      * when using the associated utility methods. It allows you to customize how text lines are
@@ -150,11 +226,20 @@ public class Utils {
      * - keepApostrophe: Specifies whether apostrophes should be preserved in the processed text.
      * - splitClitics: Indicates whether clitics (e.g., contractions) should be separated into
      * individual words during processing.
+     * - splitPunctuation: Punctuation marks (. ? ! , : ;) are tokens of their own wherever they are; otherwise only
+     * the last character of a word is split when it is one.
+     * - ellipsis: Three dots are a single "..." token.
+     * - digitBreaksWord: The '@' of a digit ends the current word; otherwise it is emitted before the word.
+     * - asciiDigits: Only '0' to '9' are digits; otherwise every {@link Character#isDigit(char)} is.
+     * - lowercasing: How the text is lowercased (see {@link Lowercasing}).
+     * - dropped: The characters removed from the words (Latin-1 only).
+     * - strictFlags: keepHyphen, keepApostrophe and splitClitics are applied. Off by default: as in the original
+     * splitLine, hyphens and apostrophes are then always kept (a hyphen is only removed when it is one of the dropped
+     * characters) and clitics are never split.
      * <p>
-     * This configuration class is intended to be used with utility methods such as
-     * {@link Utils#splitLine(String, SplitConfig)} to control the behavior of text processing.
-     * By modifying the fields in this class, users can adjust the processing rules as needed
-     * for their specific use case.
+     * Words are separated by spaces. This configuration class is compiled by {@link PreTokenizer}, which applies it;
+     * {@link #counting()} and {@link #sentences()} are the configurations of {@link Count} and
+     * {@link SentenceSplitter}.
      */
     public static final class SplitConfig {
         public boolean lowercase = true;
@@ -162,67 +247,52 @@ public class Utils {
         public boolean keepHyphen = false;
         public boolean keepApostrophe = true;
         public boolean splitClitics = false;
-    }
-
-    /**
-     * Splits a given line of text into a list of processed words based on the specified configuration.
-     * The method cleans the input line by removing unnecessary characters, optionally converting text
-     * to lowercase, replacing digits with '@', and splitting clitics when configured. It excludes empty
-     * strings and manages punctuation and special characters based on the provided configuration.
-     *
-     * @param line a string representing the line of text to be processed and split
-     * @param cfg  an instance of SplitConfig that defines the rules for processing the input line
-     * @return a list of strings containing the words processed from the input line based on the provided configuration
-     */
-    public static List<String> splitLine(String line, SplitConfig cfg) {
-        if (line == null || line.isEmpty()) return List.of();
-        if (!cfg.keepApostrophe && cfg.splitClitics)
-            System.err.println("Will not split clitics as apostrophes are discarded.");
-        String s = cfg.lowercase ? line.toLowerCase() : line;
-
-        List<String> out = new ArrayList<>();
-        for (String raw : s.split(" ")) {
-            if (raw.isEmpty()) continue;
-
-            StringBuilder token = new StringBuilder(raw.length());
-            for (int i = 0; i < raw.length(); i++) {
-                char c = raw.charAt(i);
-
-                if (Character.isDigit(c)) {
-                    if (cfg.digitsToAt) out.add("@");
-                    else token.append(c);
-                    continue;
-                }
-                if (c == '\'' && cfg.keepApostrophe) {
-                    token.append(c);
-                    continue;
-                }
-                if (c == '-' && cfg.keepHyphen) {
-                    token.append(c);
-                    continue;
-                }
+        public boolean splitPunctuation = true;
+        public boolean ellipsis = false;
+        public boolean digitBreaksWord = false;
+        public boolean asciiDigits = false;
+        public Lowercasing lowercasing = Lowercasing.LINE;
+        public String dropped = "\"(){}[]\t";
+        public boolean strictFlags = false;
 
-                if ("\"(){}[]\t".indexOf(c) >= 0) continue;
-
-                if (".?!,:;".indexOf(c) >= 0) {
-                    if (!token.isEmpty()) {
-                        out.add(token.toString());
-                        token.setLength(0);
-                    }
-                    out.add(String.valueOf(c));
-                    continue;
-                }
+        /**
+         * The scope of the lowercasing, which only differs for the characters whose lowercase depends on their
+         * context (İ, Σ, supplementary characters, or any text under a Turkish, Azeri or Lithuanian default locale).
+         */
+        public enum Lowercasing {
+            /** {@link String#toLowerCase()} of the whole line. */
+            LINE,
+            /** {@link String#toLowerCase()} of every space-separated word. */
+            WORD,
+            /** {@link Character#toLowerCase(char)} of every character. */
+            CHAR
+        }
 
-                token.append(c);
+        /**
+         * @return the configuration of the word counting: words lowercased one by one, hyphens dropped, ASCII digits
+         * only, only a trailing punctuation mark split
+         */
+        public static SplitConfig counting() {
+            SplitConfig cfg = new SplitConfig();
+            cfg.splitPunctuation = false;
+            cfg.asciiDigits = true;
+            cfg.lowercasing = Lowercasing.WORD;
+            cfg.dropped = "\"(){}-[]\t";
+            return cfg;
+        }
 
-                if (cfg.splitClitics && cfg.keepApostrophe && c == '\'') {
-                    if (!token.isEmpty()) out.add(token.toString());
-                    token = new StringBuilder(raw.length() - i);
-                }
-            }
-            if (!token.isEmpty()) out.add(token.toString());
+        /**
+         * @return the configuration of the sentences: characters lowercased one by one, hyphens kept, punctuation and
+         * ASCII digits split, "..." as one token
+         */
+        public static SplitConfig sentences() {
+            SplitConfig cfg = new SplitConfig();
+            cfg.keepHyphen = true;
+            cfg.ellipsis = true;
+            cfg.digitBreaksWord = true;
+            cfg.asciiDigits = true;
+            cfg.lowercasing = Lowercasing.CHAR;
+            return cfg;
         }
-        out.removeIf(String::isEmpty);
-        return out;
     }
 }
@@ -0,0 +1,245 @@
+package udem.tj.taln;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Type growth of several {@link Utils.SplitConfig} variants, in a single pass over a corpus.
+ * <p>
+ * Every line is read and decoded once ({@link CorpusScanner#readLines}), copied into a batch of lines, and every
+ * batch is split by the {@link PreTokenizer} of each variant in turn (batch by batch rather than line by line, so
+ * the lookup table and the {@link WordCounter} of a variant stay in cache). With a parallelism above 1, every worker
+ * thread receives the batches through its own bounded queue, a worker handling one variant (or several, when there
+ * are more variants than threads); the batches are read-only, so the workers share nothing but them. If a worker fails, the reader stops and {@link #count} rethrows.
+ * <p>
+ * Not thread-safe: one {@link #count} at a time.
+ */
+public class VariantCounter {
+
+    /**
+     * The result of a variant.
+     *
+     * @param label the label of the variant
+     * @param curve the number of lines read -> number of types, every {@code step} lines and after the last line
+     * @param types the types and their counts
+     */
+    public record Result(String label, Map<Integer, Integer> curve, WordCounter types) {
+    }
+
+    /**
+     * Lines copied from the reader: line {@code i} is {@code chars[ends[i - 1], ends[i])}.
+     */
+    private record Batch(char[] chars, int[] ends, int lines) {
+    }
+
+    private static final Batch END = new Batch(new char[0], new int[0], 0); // end-of-stream marker
+    private static final int BATCH_LINES = 8192;   // lines per batch: enough lookups to amortize a variant switch
+    private static final int QUEUE_CAPACITY = 4;   // batches waiting per worker
+
+    private final Map<String, Utils.SplitConfig> variants;
+    private final int parallelism;
+
+    private volatile Throwable failure;
+
+    /**
+     * @param variants    the label and configuration of every variant, in output order
+     * @param parallelism the number of worker threads (1 for the calling thread only); at most one per variant
+     */
+    public VariantCounter(Map<String, Utils.SplitConfig> variants, int parallelism) {
+        this.variants = new LinkedHashMap<>(variants);
+        this.parallelism = Math.max(1, Math.min(parallelism, variants.size()));
+    }
+
+    /**
+     * Counting state of a variant.
+     */
+    private static final class Variant {
+        final String label;
+        final PreTokenizer preTokenizer;
+        final WordCounter types = new WordCounter();
+        final PreTokenizer.TokenSink sink;
+        final Map<Integer, Integer> curve = new LinkedHashMap<>();
+        final int step;
+        int lines, nextMark;
+
+        Variant(String label, Utils.SplitConfig cfg, int step) {
+            this.label = label;
+            this.preTokenizer = new PreTokenizer(cfg);
+            this.sink = token -> {
+                types.add(token.array(), token.offset(), token.length(), 1);
+                return true;
+            };
+            this.step = step;
+            this.nextMark = step;
+            curve.put(0, 0);
+        }
+
+        void line(char[] chars, int offset, int length) {
+            preTokenizer.split(chars, offset, length, sink);
+            if (++lines >= nextMark) {
+                curve.put(lines, types.size());
+                nextMark += step;
+            }
+        }
+
+        Result result() {
+            if (!curve.containsKey(lines)) curve.put(lines, types.size());
+            return new Result(label, curve, types);
+        }
+    }
+
+    /**
+     * Counts the types of every variant over the first lines of a file.
+     *
+     * @param file     the corpus (see {@link Utils#getReader(String)})
+     * @param maxLines the maximum number of lines to read
+     * @param step     the number of lines between two points of the curves
+     * @return the result of every variant, in the order of the variants
+     * @throws IOException if the file cannot be read
+     */
+    public List<Result> count(String file, int maxLines, int step) throws IOException {
+        List<Variant> all = new ArrayList<>(variants.size());
+        for (var e : variants.entrySet()) all.add(new Variant(e.getKey(), e.getValue(), step));
+        if (maxLines > 0) {
+            if (parallelism <= 1) countInline(file, maxLines, all);
+            else countThreaded(file, maxLines, all);
+        }
+        List<Result> results = new ArrayList<>(all.size());
+        for (Variant v : all) results.add(v.result());
+        return results;
+    }
+
+    private static void countInline(String file, int maxLines, List<Variant> all) throws IOException {
+        BatchBuilder builder = new BatchBuilder();
+        int[] read = {0};
+        CorpusScanner.readLines(file, (line, offset, length) -> {
+            if (builder.add(line, offset, length) == BATCH_LINES) count(builder.take(), all);
+            return ++read[0] < maxLines;
+        });
+        if (builder.lines > 0) count(builder.take(), all);
+    }
+
+    /**
+     * Counts a batch variant by variant, so that the table and counter of a variant stay in cache for the batch.
+     */
+    private static void count(Batch batch, List<Variant> variants) {
+        for (Variant v : variants) {
+            int start = 0;
+            for (int i = 0; i < batch.lines; i++) {
+                v.line(batch.chars, start, batch.ends[i] - start);
+                start = batch.ends[i];
+            }
+        }
+    }
+
+    private void countThreaded(String file, int maxLines, List<Variant> all) throws IOException {
+        failure = null;
+        List<BlockingQueue<Batch>> queues = new ArrayList<>(parallelism);
+        Thread[] threads = new Thread[parallelism];
+        for (int t = 0; t < parallelism; t++) {
+            List<Variant> mine = new ArrayList<>();
+            for (int i = t; i < all.size(); i += parallelism) mine.add(all.get(i));
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            threads[t] = new Thread(() -> work(queue, mine), "variants-" + t);
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+
+        BatchBuilder builder = new BatchBuilder();
+        int[] read = {0};
+        try {
+            CorpusScanner.readLines(file, (line, offset, length) -> {
+                if (builder.add(line, offset, length) == BATCH_LINES) publish(queues, builder.take());
+                return ++read[0] < maxLines && failure == null;
+            });
+            if (builder.lines > 0) publish(queues, builder.take());
+        } finally {
+            publish(queues, END);
+        }
+        try {
+            for (Thread t : threads) t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Variant counting interrupted", e);
+        }
+        if (failure != null) throw new RuntimeException("Variant counting failed", failure);
+    }
+
+    /**
+     * Counts the batches of a queue until its end; after a failure, only drains it, so the reader never blocks.
+     */
+    private void work(BlockingQueue<Batch> queue, List<Variant> mine) {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                if (failure == null) failure = e;
+                return;
+            }
+            if (batch == END) return;
+            if (failure != null) continue;
+            try {
+                count(batch, mine);
+            } catch (Throwable t) {
+                if (failure == null) failure = t;
+            }
+        }
+    }
+
+    /**
+     * Hands a batch to every worker, waiting for room in the queues (the workers always drain them).
+     */
+    private static void publish(List<BlockingQueue<Batch>> queues, Batch batch) {
+        boolean interrupted = false;
+        for (BlockingQueue<Batch> queue : queues) {
+            while (true) {
+                try {
+                    queue.put(batch);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Copies lines into the next batch.
+     */
+    private static final class BatchBuilder {
+        private char[] chars = new char[BATCH_LINES * 128];
+        private int[] ends = new int[BATCH_LINES];
+        private int lines;
+
+        /**
+         * @return the number of lines of the batch
+         */
+        int add(char[] line, int offset, int length) {
+            int start = lines == 0 ? 0 : ends[lines - 1];
+            if (chars.length < start + length) chars = Arrays.copyOf(chars, Math.max(start + length, chars.length * 2));
+            System.arraycopy(line, offset, chars, start, length);
+            ends[lines] = start + length;
+            return ++lines;
+        }
+
+        /**
+         * @return the batch; the builder then starts a new one, since the batch may still be read by the workers
+         */
+        Batch take() {
+            Batch batch = new Batch(chars, ends, lines);
+            chars = new char[chars.length];
+            ends = new int[BATCH_LINES];
+            lines = 0;
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package udem.tj.taln;
+
+import java.util.*;
+
+/**
+ * Open-addressing counter from words to {@code int} counts.
+ * <p>
+ * The characters of every word are copied once, one after the other, into a shared {@code char[]} arena; an entry is
+ * its offset and count in parallel {@code int} arrays (its length is the distance to the next offset), and the hash
+ * table only holds entry numbers. Counting a word is a single probe (lengths are compared before any character), with
+ * no boxing and no allocation once the word is known; a word can be counted from a slice of a reused {@code char[]},
+ * whose characters are then only copied when the word is first seen. Entries are numbered densely in insertion order and are never
+ * removed, except by {@link #clear()}.
+ * <p>
+ * Not thread-safe: count on one counter per thread and {@link #addAll merge} them.
+ */
+public class WordCounter {
+
+    /**
+     * Functional interface used to visit the entries without building their strings.
+     */
+    public interface EntryVisitor {
+        void accept(int entry, int count);
+    }
+
+    private int[] table;      // slot -> entry + 1, 0 when free
+    private int shift;
+    private int[] offsets = new int[17];  // entry -> start of its word in chars, plus the end of the last word
+    private int[] counts = new int[16];
+    private char[] chars = new char[256];
+    private int size, used;   // entries, arena chars used
+    private long total;
+
+    public WordCounter() {
+        this(16);
+    }
+
+    /**
+     * @param expected the expected number of distinct words
+     */
+    public WordCounter(int expected) {
+        int cap = 16;
+        while (cap < expected * 2L) cap <<= 1; // load factor <= 0.5
+        allocate(cap);
+    }
+
+    private void allocate(int cap) {
+        table = new int[cap];
+        shift = 32 - Integer.numberOfTrailingZeros(cap);
+    }
+
+    /**
+     * @return the hash of a word, equal to {@link String#hashCode()} (cached for strings)
+     */
+    private static int hash(CharSequence word) {
+        if (word instanceof String s) return s.hashCode();
+        int h = 0;
+        for (int i = 0; i < word.length(); i++) h = 31 * h + word.charAt(i);
+        return h;
+    }
+
+    private int slot(int hash) {
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    private boolean matches(int entry, CharSequence word) {
+        int off = offsets[entry];
+        if (offsets[entry + 1] - off != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) if (chars[off + i] != word.charAt(i)) return false;
+        return true;
+    }
+
+    private boolean matches(int entry, char[] word, int offset, int length) {
+        int off = offsets[entry];
+        if (offsets[entry + 1] - off != length) return false;
+        for (int i = 0; i < length; i++) if (chars[off + i] != word[offset + i]) return false;
+        return true;
+    }
+
+    /**
+     * @return the entry of a word, or -1 - (free slot) if it is absent
+     */
+    private int find(CharSequence word, int hash) {
+        int mask = table.length - 1;
+        for (int i = slot(hash); ; i = (i + 1) & mask) {
+            int e = table[i] - 1;
+            if (e < 0) return -1 - i;
+            if (matches(e, word)) return e;
+        }
+    }
+
+    /**
+     * Counts one occurrence of a word.
+     *
+     * @return the new count of the word
+     */
+    public int add(CharSequence word) {
+        return add(word, 1);
+    }
+
+    /**
+     * Adds {@code delta} occurrences of a word, in a single probe.
+     *
+     * @return the new count of the word
+     */
+    public int add(CharSequence word, int delta) {
+        int h = hash(word);
+        int e = find(word, h);
+        total += delta;
+        if (e >= 0) return counts[e] += delta;
+        insert(-1 - e, word, delta);
+        return delta;
+    }
+
+    /**
+     * Adds {@code delta} occurrences of the word made of {@code length} characters of {@code word} from
+     * {@code offset}, without allocation if the word is known.
+     *
+     * @return the new count of the word
+     */
+    public int add(char[] word, int offset, int length, int delta) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) h = 31 * h + word[i];
+        int mask = table.length - 1;
+        int i = slot(h);
+        for (int e; (e = table[i] - 1) >= 0; i = (i + 1) & mask) {
+            if (matches(e, word, offset, length)) {
+                total += delta;
+                return counts[e] += delta;
+            }
+        }
+        total += delta;
+        int at = reserve(length);
+        System.arraycopy(word, offset, chars, at, length);
+        commit(i, length, delta);
+        return delta;
+    }
+
+    /**
+     * @return the count of a word, 0 if it was never counted
+     */
+    public int get(CharSequence word) {
+        int e = find(word, hash(word));
+        return e >= 0 ? counts[e] : 0;
+    }
+
+    /**
+     * @return the number of distinct words
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of occurrences counted
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return the word of an entry, in {@code [0, size())}
+     */
+    public String word(int entry) {
+        return new String(chars, offsets[entry], offsets[entry + 1] - offsets[entry]);
+    }
+
+    /**
+     * @return the count of an entry
+     */
+    public int count(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * Visits the entries in insertion order.
+     */
+    public void forEach(EntryVisitor visitor) {
+        for (int e = 0; e < size; e++) visitor.accept(e, counts[e]);
+    }
+
+    /**
+     * Adds every count of another counter to this one.
+     */
+    public void addAll(WordCounter other) {
+        for (int e = 0; e < other.size; e++) {
+            add(other.chars, other.offsets[e], other.offsets[e + 1] - other.offsets[e], other.counts[e]);
+        }
+    }
+
+    /**
+     * Removes every word.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+        used = 0;
+        offsets[0] = 0;
+        total = 0;
+    }
+
+    /**
+     * @return the {@code n} most frequent words and their counts, by decreasing count then alphabetical order
+     */
+    public List<Map.Entry<String, Integer>> top(int n) {
+        Comparator<Integer> order = (a, b) -> counts[a] != counts[b]
+                ? Integer.compare(counts[b], counts[a])
+                : compareWords(a, b);
+        // bounded heap whose head is the weakest of the kept entries
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, Math.min(n, size)) + 1, order.reversed());
+        for (int e = 0; e < size && n > 0; e++) {
+            heap.add(e);
+            if (heap.size() > n) heap.poll();
+        }
+        List<Integer> entries = new ArrayList<>(heap);
+        entries.sort(order);
+        List<Map.Entry<String, Integer>> out = new ArrayList<>(entries.size());
+        for (int e : entries) out.add(new AbstractMap.SimpleImmutableEntry<>(word(e), counts[e]));
+        return out;
+    }
+
+    private int compareWords(int a, int b) {
+        int oa = offsets[a], ob = offsets[b], la = offsets[a + 1] - oa, lb = offsets[b + 1] - ob;
+        for (int i = 0; i < Math.min(la, lb); i++) {
+            int c = chars[oa + i] - chars[ob + i];
+            if (c != 0) return c;
+        }
+        return la - lb;
+    }
+
+    /**
+     * @return a read-only map view of the counts; its keys are built on access
+     */
+    public Map<String, Integer> view() {
+        return new AbstractMap<>() {
+            @Override
+            public Integer get(Object key) {
+                if (!(key instanceof String word)) return null;
+                int e = find(word, hash(word));
+                return e >= 0 ? counts[e] : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Set<Entry<String, Integer>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<String, Integer>> iterator() {
+                        return new Iterator<>() {
+                            private int e;
+
+                            @Override
+                            public boolean hasNext() {
+                                return e < size;
+                            }
+
+                            @Override
+                            public Entry<String, Integer> next() {
+                                if (e >= size) throw new NoSuchElementException();
+                                int k = e++;
+                                return new SimpleImmutableEntry<>(word(k), counts[k]);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+                };
+            }
+        };
+    }
+
+    private void insert(int slot, CharSequence word, int count) {
+        int len = word.length();
+        int at = reserve(len);
+        if (word instanceof String s) s.getChars(0, len, chars, at);
+        else for (int i = 0; i < len; i++) chars[at + i] = word.charAt(i);
+        commit(slot, len, count);
+    }
+
+    /**
+     * Makes room for one more entry of {@code len} characters.
+     *
+     * @return the offset of its characters in the arena
+     */
+    private int reserve(int len) {
+        int e = size;
+        if (e == counts.length) {
+            int cap = e + (e >> 1); // grown by half to keep the slack small
+            offsets = Arrays.copyOf(offsets, cap + 1);
+            counts = Arrays.copyOf(counts, cap);
+        }
+        if (used + len > chars.length) chars = Arrays.copyOf(chars, Math.max(chars.length + (chars.length >> 1), used + len));
+        return used;
+    }
+
+    private void commit(int slot, int len, int count) {
+        int e = size;
+        counts[e] = count;
+        used += len;
+        offsets[e + 1] = used;
+        table[slot] = e + 1;
+        if (++size * 2 > table.length) rehash();
+    }
+
+    private void rehash() {
+        allocate(table.length << 1);
+        int mask = table.length - 1;
+        for (int e = 0; e < size; e++) {
+            int h = 0;
+            for (int c = offsets[e]; c < offsets[e + 1]; c++) h = 31 * h + chars[c];
+            int i = slot(h);
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = e + 1;
+        }
+    }
+}
@@ -2,8 +2,18 @@ package udem.tj.taln;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -74,4 +84,461 @@ public class BPETest {
         assertTrue(toks.contains("<UNK>"),
                 "Unknown char should produce <UNK>");
     }
-}
\ No newline at end of file
+
+    @Test
+    void encodeParamFast_matchesEncodeParam() {
+        BPE bpe = new BPE();
+        for (boolean boundary : new boolean[]{true, false}) {
+            BPE.Encoding ref = bpe.encodeParam(toyCounts(), 200, 2, 20000, boundary);
+            BPE.Encoding fast = bpe.encodeParamFast(toyCounts(), 200, 2, 20000, boundary);
+
+            assertEquals(ref.merges(), fast.merges(), "merge order differs");
+            assertEquals(ref.vocabulary(), fast.vocabulary(), "segmented vocabulary differs");
+            assertEquals(ref.tokens(), fast.tokens(), "token set differs");
+        }
+    }
+
+    @Test
+    void encodeParamFast_overlappingPairsMatchEncode() {
+        // repeated symbols: merge sites overlap and share neighbours
+        HashMap<String, AtomicInteger> counts = toyCounts();
+        counts.put("aaaa", new AtomicInteger(9));
+        counts.put("aaa", new AtomicInteger(7));
+        counts.put("abab", new AtomicInteger(6));
+        counts.put("baaab", new AtomicInteger(4));
+
+        BPE bpe = new BPE();
+        BPE.Encoding ref = bpe.encode(counts, 200);
+        BPE.Encoding fast = bpe.encodeParamFast(counts, 200, 2, 50_000, true);
+
+        assertEquals(ref.merges(), fast.merges(), "merge order differs");
+        assertEquals(ref.vocabulary(), fast.vocabulary(), "segmented vocabulary differs");
+    }
+
+    @Test
+    void encodeParamFast_parallelMatchesSequential() {
+        // enough words for merges to be applied on several shards in parallel
+        HashMap<String, AtomicInteger> counts = new HashMap<>();
+        Random rnd = new Random(42);
+        while (counts.size() < 5000) {
+            StringBuilder sb = new StringBuilder();
+            int n = 3 + rnd.nextInt(8);
+            for (int i = 0; i < n; i++) sb.append("abcdeé'".charAt(rnd.nextInt(7)));
+            counts.put(sb.toString(), new AtomicInteger(1 + rnd.nextInt(50)));
+        }
+
+        BPE bpe = new BPE();
+        BPE.Encoding seq = bpe.encodeParamFast(counts, 500, 2, 20000, true, 1);
+        BPE.Encoding par = bpe.encodeParamFast(counts, 500, 2, 20000, true, 4);
+
+        assertEquals(seq.merges(), par.merges(), "parallel merge order differs");
+        assertEquals(seq.vocabulary(), par.vocabulary(), "parallel segmentation differs");
+    }
+
+    @Test
+    void encodeSweep_prefixesMatchSeparateRuns() {
+        HashMap<String, AtomicInteger> counts = toyCounts();
+        counts.put("parler", new AtomicInteger(30));
+        counts.put("partie", new AtomicInteger(6));
+        counts.put("délai", new AtomicInteger(3));
+
+        BPE bpe = new BPE();
+        BpeTrainer sweep = bpe.encodeSweep(counts, 60, 2, 20000, true);
+        for (int v : new int[]{20, 30, 60}) {
+            for (int m : new int[]{2, 5, 10}) {
+                BPE.Encoding ref = bpe.encodeParam(counts, v, m, 20000, true);
+                BPE.Encoding derived = sweep.encodingFor(v, m, 20000);
+                assertEquals(ref.merges(), derived.merges(), "merges differ for V=" + v + " M=" + m);
+                assertEquals(ref.vocabulary(), derived.vocabulary(), "vocabulary differs for V=" + v + " M=" + m);
+                assertEquals(ref.tokens(), derived.tokens(), "tokens differ for V=" + v + " M=" + m);
+            }
+        }
+    }
+
+    @Test
+    void encodeResume_fromCheckpointMatchesDirectRun() throws Exception {
+        HashMap<String, AtomicInteger> counts = new HashMap<>();
+        Random rnd = new Random(7);
+        while (counts.size() < 500) {
+            StringBuilder sb = new StringBuilder();
+            int n = 3 + rnd.nextInt(8);
+            for (int i = 0; i < n; i++) sb.append("abcdeé'".charAt(rnd.nextInt(7)));
+            counts.put(sb.toString(), new AtomicInteger(1 + rnd.nextInt(50)));
+        }
+
+        BPE bpe = new BPE();
+        BPE.Encoding ref = bpe.encodeParamFast(counts, 200, 2, 20000, true, 1);
+
+        Path dir = Files.createTempDirectory("bpe");
+        Path checkpoint = dir.resolve("checkpoint.txt");
+        BpeTrainer first = new BpeTrainer(counts, true);
+        first.checkpointTo(checkpoint, 3);
+        first.train(60, 2, 20000);
+        List<String> saved = BpeTrainer.readMerges(checkpoint);
+        assertEquals(first.merges(), saved);
+
+        BPE.Encoding resumed = bpe.encodeResume(counts, saved, 200, 2, 20000, true);
+        assertEquals(ref.merges(), resumed.merges());
+        assertEquals(ref.vocabulary(), resumed.vocabulary());
+        assertEquals(ref.tokens(), resumed.tokens());
+
+        Files.delete(checkpoint);
+        Files.delete(dir);
+    }
+
+    @Test
+    void bpeModel_matchesTokenizeWord() {
+        BPE bpe = new BPE();
+        BPE.Encoding enc = bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true);
+        BpeModel model = BpeModel.of(enc, true);
+
+        for (String w : List.of("paris", "Partir", "delapar", "euros€", "x", "", "dedede", "lalalalala")) {
+            assertEquals(bpe.tokenizeWord(w, enc.merges(), enc.charset(), true), model.tokenize(w), "differs for " + w);
+        }
+    }
+
+    @Test
+    void bpeModel_longWordsMatchTokenizeWord() {
+        // long enough for the heap-based merge engine, with repeated and overlapping pairs
+        BPE bpe = new BPE();
+        HashMap<String, AtomicInteger> counts = toyCounts();
+        counts.put("aaaa", new AtomicInteger(9));
+        counts.put("abab", new AtomicInteger(6));
+        BPE.Encoding enc = bpe.encodeParamFast(counts, 200, 2, 20000, true);
+        BpeModel model = BpeModel.of(enc, true);
+
+        Random rnd = new Random(3);
+        for (int k = 0; k < 200; k++) {
+            StringBuilder sb = new StringBuilder();
+            int n = 24 + rnd.nextInt(200);
+            for (int i = 0; i < n; i++) sb.append("abdelprist€".charAt(rnd.nextInt(11)));
+            String w = sb.toString();
+            assertEquals(bpe.tokenizeWord(w, enc.merges(), enc.charset(), true), model.tokenize(w), "differs for " + w);
+        }
+    }
+
+    @Test
+    void bpeAutomaton_matchesRankedTokenizer() {
+        BPE bpe = new BPE();
+        HashMap<String, AtomicInteger> counts = toyCounts();
+        counts.put("aaaa", new AtomicInteger(9));
+        counts.put("abab", new AtomicInteger(6));
+        for (boolean boundary : new boolean[]{true, false}) {
+            BPE.Encoding enc = bpe.encodeParamFast(counts, 200, 2, 20000, boundary);
+            BpeAutomaton automaton = new BpeAutomaton(BpeModel.of(enc, boundary));
+
+            List<String> words = new ArrayList<>(counts.keySet());
+            Random rnd = new Random(5);
+            for (int k = 0; k < 300; k++) {
+                StringBuilder sb = new StringBuilder();
+                int n = 1 + rnd.nextInt(40);
+                for (int i = 0; i < n; i++) sb.append("abdelprist€_".charAt(rnd.nextInt(12)));
+                words.add(sb.toString());
+            }
+            assertEquals(List.of(), automaton.verify(words), "automaton differs from the ranked merges");
+            assertEquals(bpe.tokenizeWordFast("delapar€s", enc.merges(), enc.charset(), boundary),
+                    automaton.tokenize("delapar€s"));
+        }
+    }
+
+    @Test
+    void tokenizeWordFast_alternatingMergeListsMatchTokenizeWord() {
+        BPE bpe = new BPE();
+        List<BPE.Encoding> encodings = new ArrayList<>();
+        for (int v : new int[]{8, 12, 200}) encodings.add(bpe.encode(toyCounts(), v));
+        for (int k = 0; k < 3; k++) {
+            for (BPE.Encoding enc : encodings) {
+                for (String w : List.of("paris", "delapartie", "x")) {
+                    assertEquals(bpe.tokenizeWord(w, enc.merges(), enc.charset(), true),
+                            bpe.tokenizeWordFast(w, enc.merges(), enc.charset(), true));
+                }
+            }
+        }
+    }
+
+    @Test
+    void tokenizeBatch_keepsOrderAndMatchesSequential() {
+        BPE bpe = new BPE();
+        BPE.Encoding enc = bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true);
+        BpeModel model = BpeModel.of(enc, true);
+
+        List<List<String>> sentences = new ArrayList<>();
+        Random rnd = new Random(11);
+        for (int k = 0; k < 1000; k++) {
+            List<String> s = new ArrayList<>();
+            int n = rnd.nextInt(12);
+            for (int i = 0; i < n; i++) s.add(List.of("de", "la", "Paris", "partir", "dela", "€uro").get(rnd.nextInt(6)));
+            sentences.add(s);
+        }
+
+        List<List<String>> batch = bpe.tokenizeBatch(sentences, model, 4);
+        assertEquals(sentences.size(), batch.size());
+        for (int k = 0; k < sentences.size(); k++) {
+            List<String> expected = new ArrayList<>();
+            for (String w : sentences.get(k)) expected.addAll(bpe.tokenizeWordFast(w, enc.merges(), enc.charset(), true));
+            assertEquals(expected, batch.get(k), "sentence " + k);
+        }
+    }
+
+    @Test
+    void bpeModel_encodeWritesIdsWithSentenceOffsets() {
+        BPE bpe = new BPE();
+        BpeModel model = BpeModel.of(bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true), true);
+        List<List<String>> sentences = List.of(List.of("paris", "de", "la"), List.of(), List.of("İle", "€"));
+
+        int[] ids = new int[model.maxTokens(sentences)];
+        int[] offsets = new int[sentences.size() + 1];
+        int total = model.encode(sentences, ids, offsets);
+
+        IntBuffer buf = IntBuffer.allocate(total);
+        int[] bufOffsets = new int[sentences.size() + 1];
+        assertEquals(total, model.encode(sentences, buf, bufOffsets));
+        assertArrayEquals(offsets, bufOffsets);
+        assertArrayEquals(Arrays.copyOf(ids, total), buf.array());
+
+        for (int k = 0; k < sentences.size(); k++) {
+            List<String> expected = new ArrayList<>();
+            for (String w : sentences.get(k)) expected.addAll(model.tokenize(w));
+            List<String> decoded = new ArrayList<>();
+            for (int i = offsets[k]; i < offsets[k + 1]; i++) decoded.add(model.symbol(ids[i]));
+            assertEquals(expected, decoded);
+            for (String t : expected) assertEquals(t, model.symbol(model.id(t)));
+        }
+        assertEquals(BpeModel.UNK_ID, model.id("€"));
+    }
+
+    @Test
+    void bpeDecoder_roundTripsEncodedSentences() throws Exception {
+        BPE bpe = new BPE();
+        BpeModel model = BpeModel.of(bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true), true);
+        BpeDecoder decoder = new BpeDecoder(model);
+        List<List<String>> sentences = List.of(List.of("Paris", "de", "la", "partir"), List.of("dela"), List.of("l€s", "pas"));
+
+        int[] ids = new int[model.maxTokens(sentences)];
+        int[] offsets = new int[sentences.size() + 1];
+        model.encode(sentences, ids, offsets);
+
+        assertEquals("paris de la partir", decoder.decode(ids, offsets[0], offsets[1]));
+        assertEquals("dela", decoder.decode(ids, offsets[1], offsets[2]));
+        assertEquals("l\uFFFDs pas", decoder.decode(ids, offsets[2], offsets[3]));
+
+        StringWriter w = new StringWriter();
+        decoder.decode(ids, 0, offsets[3], w);
+        CharBuffer buf = CharBuffer.allocate(decoder.length(ids, 0, offsets[3]));
+        decoder.decode(ids, 0, offsets[3], buf);
+        assertEquals(w.toString(), new String(buf.array()));
+        assertEquals("paris de la partir dela l\uFFFDs pas", w.toString());
+    }
+
+    @Test
+    void tokenCache_keepsFrequentWordsUnderAScan() {
+        TokenCache<String> cache = new TokenCache<>(256);
+        List<String> hot = new ArrayList<>();
+        for (int i = 0; i < 32; i++) hot.add("hot" + i);
+
+        // long tail of words seen once, interleaved with the frequent ones
+        for (int i = 0; i < 20_000; i++) {
+            cache.computeIfAbsent("rare" + i, String::toUpperCase);
+            cache.computeIfAbsent(hot.get(i % hot.size()), String::toUpperCase);
+        }
+
+        TokenCache.Stats stats = cache.stats();
+        for (String w : hot) assertEquals(w.toUpperCase(), cache.get(w), "frequent word evicted: " + w);
+        assertTrue(stats.size() <= 256);
+        assertTrue(stats.rejections() > 0);
+        assertTrue(stats.hits() >= 20_000 - 32 * 4, "frequent words missed: " + stats);
+    }
+
+    @Test
+    void bpeModel_frozenTopWordsAreSavedAndLoaded() throws Exception {
+        BPE bpe = new BPE();
+        HashMap<String, AtomicInteger> counts = toyCounts();
+        BPE.Encoding enc = bpe.encodeParamFast(counts, 200, 2, 20000, true);
+        BpeModel plain = BpeModel.of(enc, true);
+        BpeModel model = BpeModel.of(enc, true, counts, 3);
+        assertEquals(3, model.frozenSize());
+
+        Path file = Files.createTempFile("bpe", ".model");
+        model.save(file);
+        BpeModel loaded = BpeModel.load(file, 0);
+        file.toFile().deleteOnExit(); // mapped by the loaded model
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[4] = 1; // version 1
+        Path old = Files.write(Files.createTempFile("bpe", ".model"), bytes);
+        assertThrows(java.io.IOException.class, () -> BpeModel.load(old, 0));
+        Files.delete(old);
+
+        assertEquals(3, loaded.frozenSize());
+        assertEquals(model.size(), loaded.size());
+        for (int id = 0; id < model.size(); id++) assertEquals(model.symbol(id), loaded.symbol(id));
+        assertEquals(model.id("pa"), loaded.id("pa"));
+        for (String w : List.of("de", "la", "paris", "partir", "dela", "Parisien", "x€")) {
+            assertEquals(plain.tokenize(w), model.tokenize(w), w);
+            assertEquals(plain.tokenize(w), loaded.tokenize(w), w);
+        }
+    }
+
+    @Test
+    void tokenPipeline_streamsLikeSplitThenTokenize() throws Exception {
+        BPE bpe = new BPE();
+        BpeModel model = BpeModel.of(bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true), true);
+        List<String> lines = new ArrayList<>();
+        lines.add("skipped line. never read!");
+        Random rnd = new Random(5);
+        for (int k = 0; k < 300; k++) {
+            StringBuilder sb = new StringBuilder();
+            int n = rnd.nextInt(15);
+            for (int i = 0; i < n; i++) sb.append(List.of("De", "la", "Paris", "(partir)", "1999", "dela", "...", ".", "?", "€uro,").get(rnd.nextInt(10))).append(' ');
+            lines.add(sb.toString());
+        }
+        lines.add("an unfinished sentence");
+        Path file = Files.createTempFile("corpus", ".txt");
+        Files.write(file, lines);
+
+        for (int max : new int[]{0, 7, 100, Integer.MAX_VALUE}) {
+            List<List<String>> sentences = new ArrayList<>();
+            SentenceSplitter splitter = new SentenceSplitter();
+            for (String line : lines.subList(1, lines.size())) {
+                if (sentences.size() >= max) break;
+                splitter.accept(line, s -> {
+                    sentences.add(s);
+                    return sentences.size() < max;
+                });
+            }
+            List<String> last = splitter.flush();
+            if (last != null && sentences.size() < max) sentences.add(last);
+            StringBuilder expected = new StringBuilder();
+            for (List<String> s : sentences) {
+                List<String> tokens = new ArrayList<>();
+                for (String w : s) tokens.addAll(model.tokenize(w));
+                expected.append(String.join(" ", tokens)).append('\n');
+            }
+
+            StringWriter out = new StringWriter();
+            List<TokenPipeline.StageStats> stages = new TokenPipeline(model, 2, 3).run(file.toString(), 1, max, out);
+            assertEquals(expected.toString(), out.toString(), "max " + max);
+            assertEquals(sentences.size(), stages.get(3).items(), "max " + max);
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    void bpeModel_countsAndSegmentLengthsMatchTokens() {
+        BPE bpe = new BPE();
+        BpeModel model = BpeModel.of(bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true), true);
+        int[] lengths = new int[64];
+        for (String w : List.of("de", "la", "Paris", "partir", "dela", "€uro", "x€y", "İle", "")) {
+            List<String> tokens = model.tokenize(w);
+            assertEquals(tokens.size(), model.countTokens(w), w);
+            assertEquals(tokens.size(), model.segmentLengths(w, lengths, 1), w);
+            int total = 0;
+            for (int i = 0; i < tokens.size(); i++) {
+                String t = tokens.get(i);
+                assertEquals(t.equals(BpeModel.UNK) ? 1 : t.length(), lengths[1 + i], w + " token " + i);
+                total += lengths[1 + i];
+            }
+            assertEquals(w.toLowerCase().length() + 1, total, w);
+        }
+    }
+
+    @Test
+    void tokenizationStats_parallelPassMatchesSequentialCounts() {
+        BPE bpe = new BPE();
+        HashMap<String, AtomicInteger> counts = toyCounts();
+        BpeModel model = BpeModel.of(bpe.encodeParamFast(counts, 200, 2, 20000, true), true);
+        Random rnd = new Random(3);
+        for (int k = 0; k < 5000; k++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = rnd.nextInt(12); i >= 0; i--) sb.append("deparistx€".charAt(rnd.nextInt(10)));
+            counts.computeIfAbsent(sb.toString(), w -> new AtomicInteger()).addAndGet(1 + rnd.nextInt(50));
+        }
+
+        List<String> ranked = new ArrayList<>(counts.keySet());
+        ranked.sort((a, b) -> Integer.compare(counts.get(b).get(), counts.get(a).get()));
+        int n = ranked.size();
+        long tokens = 0, occurrences = 0, weighted = 0;
+        HashMap<Integer, Integer> histogram = new HashMap<>();
+        for (String w : ranked) {
+            int segs = model.countTokens(w);
+            tokens += segs;
+            occurrences += counts.get(w).get();
+            weighted += (long) counts.get(w).get() * segs;
+            histogram.merge(segs, 1, Integer::sum);
+        }
+
+        for (int parallelism : new int[]{1, 4}) {
+            TokenizationStats stats = TokenizationStats.compute(counts, model::countTokens, parallelism);
+            assertEquals(n, stats.words());
+            assertEquals(tokens, stats.tokens());
+            assertEquals((double) weighted / occurrences, stats.weightedAvgTokensPerWord(), 1e-12);
+            assertEquals(histogram.keySet(), stats.pctByNSegments().keySet());
+            for (var e : histogram.entrySet())
+                assertEquals(100.0 * e.getValue() / n, stats.pctByNSegments().get(e.getKey()), 1e-9);
+            for (int d = 1; d <= 10; d++) {
+                int start = (int) Math.floor((d - 1) / 10.0 * n), end = (int) Math.floor(d / 10.0 * n);
+                double sum = 0;
+                for (int i = start; i < end; i++) sum += model.countTokens(ranked.get(i));
+                assertEquals(sum / (end - start), stats.decileAvg().get(d), 1e-9, "decile " + d);
+            }
+            assertTrue(stats.latencyPercentile(0.5) <= stats.latencyPercentile(0.99));
+        }
+    }
+
+    @Test
+    void tokenizationStats_latencyBucketsBoundTheirValues() {
+        for (long v : new long[]{0, 1, 15, 16, 17, 31, 32, 100, 1000, 123_456_789, Long.MAX_VALUE}) {
+            long low = TokenizationStats.latencyLowerBound(TokenizationStats.latencyBucket(v));
+            assertTrue(low <= v && v - low <= v / 16, v + " -> " + low);
+        }
+    }
+
+    /**
+     * Applies every merge in file order over the whole word, as the former comparison with external merges did.
+     */
+    private static List<String> applyInOrder(String word, List<String> merges, Set<String> charset) {
+        List<String> toks = new ArrayList<>();
+        for (char c : ("_" + word.toLowerCase()).toCharArray())
+            toks.add(charset.contains(String.valueOf(c)) ? String.valueOf(c) : BpeModel.UNK);
+        for (String m : merges) {
+            String[] sp = m.split(" ");
+            for (int i = 0; i < toks.size() - 1; ) {
+                if (toks.get(i).equals(sp[0]) && toks.get(i + 1).equals(sp[1])) {
+                    toks.set(i, sp[0] + sp[1]);
+                    toks.remove(i + 1);
+                } else i++;
+            }
+        }
+        return toks;
+    }
+
+    @Test
+    void bpeModel_fromMergesFileMatchesInOrderApplication() throws Exception {
+        BPE bpe = new BPE();
+        BPE.Encoding enc = bpe.encodeParamFast(toyCounts(), 200, 2, 20000, true);
+        Path dir = Files.createTempDirectory("hf");
+        Path merges = dir.resolve("merges.txt"), vocab = dir.resolve("vocab.json");
+        List<String> lines = new ArrayList<>(List.of("#version: 0.2", "", "not a merge line"));
+        for (String m : enc.merges()) lines.add("  " + m.replace(" ", "\t "));
+        Files.write(merges, lines);
+        Files.writeString(vocab, "{ \"x\": 0, \"\\u00e9\": 1, \"\\\"q\": 2, \"de\" : 3 }");
+
+        assertEquals(List.of("x", "\u00e9", "\"q", "de"), new ArrayList<>(Utils.readVocabJson(vocab).keySet()));
+        BpeModel hf = BpeModel.fromMergesFile(merges, vocab, true);
+        BpeModel noVocab = BpeModel.fromMergesFile(merges, null, true);
+        assertEquals(enc.merges().size(), hf.mergeCount());
+
+        Set<String> charset = new HashSet<>();
+        for (String m : enc.merges()) for (char c : m.replace(" ", "").toCharArray()) charset.add(String.valueOf(c));
+        for (String w : List.of("de", "la", "paris", "partir", "dela", "Parisien", "x€", "été")) {
+            assertEquals(applyInOrder(w, enc.merges(), charset), noVocab.tokenize(w), w);
+            charset.add("x");
+            charset.add("\u00e9");
+            assertEquals(applyInOrder(w, enc.merges(), charset), hf.tokenize(w), w);
+            charset.remove("x");
+            charset.remove("\u00e9");
+        }
+        Files.delete(merges);
+        Files.delete(vocab);
+        Files.delete(dir);
+    }
+}
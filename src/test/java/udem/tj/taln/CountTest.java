@@ -5,12 +5,30 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.lang.reflect.Field;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -28,11 +46,15 @@ public class CountTest {
 
     // injects reader in memory
     private void injectContent(Count c, String content) {
+        injectReader(c, () -> new StringReader(content));
+    }
+
+    private void injectReader(Count c, Supplier<Reader> reader) {
         try {
             // bufferedReader
             Field br = Count.class.getDeclaredField("bufferedReader");
             br.setAccessible(true);
-            br.set(c, new BufferedReader(new StringReader(content)));
+            br.set(c, new BufferedReader(reader.get()));
 
             // processedLines = 0
             Field pl = Count.class.getDeclaredField("processedLines");
@@ -41,7 +63,7 @@ public class CountTest {
 
             c.reset();
 
-            br.set(c, new BufferedReader(new StringReader(content)));
+            br.set(c, new BufferedReader(reader.get()));
             pl.setInt(c, 0);
         } catch (Exception e) {
             throw new RuntimeException("Reader injection failed", e);
@@ -90,4 +112,165 @@ public class CountTest {
         assertEquals(1, m.get("monde").get(), "word wihtout final punctuation should be counted");
         assertEquals(1, m.get(".").get(), "final punctuation should be isolated and counted");
     }
-}
\ No newline at end of file
+
+    @Test
+    void wordCounter_matchesHashMapCounts() {
+        WordCounter counter = new WordCounter();
+        HashMap<String, Integer> expected = new HashMap<>();
+        Random rnd = new Random(1);
+        for (int i = 0; i < 50_000; i++) {
+            String w = Integer.toString(rnd.nextInt(5000), 36) + (i % 3 == 0 ? "é" : "");
+            if (i % 2 == 0) counter.add(w);
+            else counter.add(CharBuffer.wrap(("x" + w).toCharArray(), 1, w.length()));
+            expected.merge(w, 1, Integer::sum);
+        }
+        assertEquals(expected.size(), counter.size());
+        assertEquals(50_000, counter.total());
+        assertEquals(expected, new HashMap<>(counter.view()));
+        assertNull(counter.view().get("absent"));
+
+        WordCounter merged = new WordCounter();
+        merged.add("~", 2);
+        merged.addAll(counter);
+        assertEquals(counter.size() + 1, merged.size());
+        assertEquals(counter.get("1"), merged.get("1"));
+
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(expected.entrySet());
+        sorted.sort((a, b) -> !a.getValue().equals(b.getValue()) ? b.getValue() - a.getValue() : a.getKey().compareTo(b.getKey()));
+        assertEquals(sorted.subList(0, 3), counter.top(3));
+    }
+
+    @Test
+    void execute_mappedMatchesReader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Random rnd = new Random(7);
+        String[] ends = {"\n", "\r\n", "\r"};
+        String[] words = {"le", "Chat", "été", "mangé.", "Québec,", "ça", "va...", "?", "œuvre;", "DÉJÀ!", "(en-tête)",
+                "İstanbul", "ΟΔΟΣ", "𝔸𝕓c", "\t\"x\"", ""};
+        for (int i = 0; i < 5000; i++) {
+            int n = rnd.nextInt(12);
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < n; j++) line.append(j == 0 ? "" : " ").append(words[rnd.nextInt(words.length)]).append(i % 97);
+            bytes.writeBytes(line.toString().getBytes(StandardCharsets.UTF_8));
+            if (i % 1000 == 999) bytes.writeBytes(new byte[]{' ', (byte) 0xC3, 'a', (byte) 0xE2, (byte) 0x82}); // malformed
+            bytes.writeBytes(ends[rnd.nextInt(ends.length)].getBytes(StandardCharsets.UTF_8));
+        }
+        bytes.writeBytes("fin sans retour".getBytes(StandardCharsets.UTF_8));
+        Path file = Files.createTempFile("count", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, bytes.toByteArray());
+
+        injectReader(count, () -> new InputStreamReader(new ByteArrayInputStream(bytes.toByteArray()), StandardCharsets.UTF_8));
+        Count mapped = new Count();
+        Count parallel = new Count(4);
+        for (int lines : new int[]{1, 700, 700, 3000, 6000}) {
+            count.execute(lines, "/ignored");
+            for (Count c : new Count[]{mapped, parallel}) {
+                c.execute(lines, file.toString());
+                assertEquals(count.getWordCount(), c.getWordCount(), "after " + lines + " lines");
+                assertEquals(List.copyOf(count.getCountsView().entrySet()), List.copyOf(c.getCountsView().entrySet()));
+            }
+        }
+        parallel.reset();
+    }
+
+    @Test
+    void preTokenizer_appliesSplitConfig() {
+        String line = "L'été (1999) est-il fini...";
+        assertEquals(List.of("l'été", "@", "@", "@", "@", "estil", "fini..", "."),
+                tokens(new PreTokenizer(Utils.SplitConfig.counting()), line));
+
+        Utils.SplitConfig clitics = new Utils.SplitConfig();
+        clitics.splitClitics = true;
+        assertEquals(List.of("l'été", "@", "@", "@", "@", "est-il", "fini", ".", ".", "."),
+                tokens(new PreTokenizer(clitics), line));
+
+        List<List<String>> sentences = new ArrayList<>();
+        SentenceSplitter splitter = new SentenceSplitter();
+        splitter.accept(line + " Oui! Et", sentences::add);
+        assertEquals(List.of(List.of("l'été", "@", "@", "@", "@", "est-il", "fini", "..."), List.of("oui", "!")), sentences);
+        assertEquals(List.of("et"), splitter.flush());
+
+        // final sigma and an Arabic-Indic digit: word, line and char lowercasing, ASCII or Unicode digits
+        String greek = "ΟΔΟΣ ٣";
+        assertEquals(List.of("οδος", "٣"), tokens(new PreTokenizer(Utils.SplitConfig.counting()), greek));
+        assertEquals(List.of("οδος", "@"), tokens(new PreTokenizer(new Utils.SplitConfig()), greek));
+        splitter.accept(greek, sentences::add);
+        assertEquals(List.of("οδοσ", "٣"), splitter.flush());
+
+        List<String> first = new ArrayList<>();
+        assertFalse(new PreTokenizer(clitics).split(line, t -> first.add(t.toString()) && first.size() < 2));
+        assertEquals(List.of("l'été", "@"), first);
+    }
+
+    @Test
+    void preTokenizer_strictFlagsApplyHyphenApostropheAndClitics() {
+        String line = "L'enfant-roi d'hier";
+        Utils.SplitConfig cfg = new Utils.SplitConfig();
+        cfg.splitClitics = true;
+        assertEquals(List.of("l'enfant-roi", "d'hier"), tokens(new PreTokenizer(cfg), line));
+        cfg.strictFlags = true;
+        assertEquals(List.of("l'", "enfantroi", "d'", "hier"), tokens(new PreTokenizer(cfg), line));
+
+        cfg = new Utils.SplitConfig();
+        cfg.keepHyphen = true;
+        cfg.keepApostrophe = false;
+        assertEquals(List.of("l'enfant-roi", "d'hier"), tokens(new PreTokenizer(cfg), line));
+        cfg.strictFlags = true;
+        assertEquals(List.of("lenfant-roi", "dhier"), tokens(new PreTokenizer(cfg), line));
+
+        Utils.SplitConfig counting = Utils.SplitConfig.counting();
+        counting.strictFlags = true;
+        counting.keepHyphen = true;
+        assertEquals(List.of("l'enfant-roi", "d'hier"), tokens(new PreTokenizer(counting), line));
+    }
+
+    private static List<String> tokens(PreTokenizer preTokenizer, String line) {
+        List<String> out = new ArrayList<>();
+        preTokenizer.split(line, t -> out.add(t.toString()));
+        return out;
+    }
+
+    @Test
+    void variantCounter_matchesOnePassPerVariant() throws IOException {
+        List<String> lines = new ArrayList<>();
+        Random rnd = new Random(11);
+        String[] words = {"L'été", "est-il", "fini...", "(1999)", "Chat", "chat", "l'homme", "C'EST", "a.b", "Œuvre!"};
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = rnd.nextInt(10); j > 0; j--) sb.append(words[rnd.nextInt(words.length)]).append(i % 50).append(' ');
+            lines.add(sb.toString());
+        }
+        Path file = Files.createTempFile("variants", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, lines);
+
+        Map<String, Utils.SplitConfig> variants = new LinkedHashMap<>();
+        variants.put("default", new Utils.SplitConfig());
+        Utils.SplitConfig clitics = new Utils.SplitConfig();
+        clitics.splitClitics = true;
+        variants.put("clitics", clitics);
+        Utils.SplitConfig cased = new Utils.SplitConfig();
+        cased.lowercase = false;
+        variants.put("cased", cased);
+        variants.put("counting", Utils.SplitConfig.counting());
+        variants.put("sentences", Utils.SplitConfig.sentences());
+
+        for (int parallelism : new int[]{1, 3, 8}) {
+            List<VariantCounter.Result> results = new VariantCounter(variants, parallelism).count(file.toString(), 1500, 100);
+            assertEquals(List.copyOf(variants.keySet()), results.stream().map(VariantCounter.Result::label).toList());
+            for (VariantCounter.Result r : results) {
+                PreTokenizer preTokenizer = new PreTokenizer(variants.get(r.label()));
+                HashSet<String> types = new HashSet<>();
+                Map<Integer, Integer> curve = new LinkedHashMap<>();
+                curve.put(0, 0);
+                for (int i = 0; i < 1500; i++) {
+                    preTokenizer.split(lines.get(i), t -> types.add(t.toString()) || true);
+                    if ((i + 1) % 100 == 0) curve.put(i + 1, types.size());
+                }
+                assertEquals(curve, r.curve(), r.label() + " with " + parallelism);
+                assertEquals(types.size(), r.types().size());
+            }
+        }
+    }
+}